@@ -1,84 +1,187 @@
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 // -------------------- Main Class (defined first to avoid reference errors) --------------------
 public class Main {
-    private static final Interpreter interpreter = new Interpreter();
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    private static final LoxEngine engine = new LoxEngine();
+    private static final ErrorReporter errors = new ErrorReporter(System.err);
+    private static boolean mapSource = false;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 2) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length >= 1) {
-            // Check if the first argument is one of our commands
-            if (args.length == 2) {
-                if (args[0].equals("run")) {
-                    runFile(args[1]);
-                } else if (args[0].equals("evaluate")) {
-                    runEvaluateFile(args[1]);
-                } else if (args[0].equals("parse")) {
-                    runParseFile(args[1]);
-                } else if (args[0].equals("tokenize")) {
-                    runTokenizeFile(args[1]);
-                } else {
-                    runFile(args[0]);
-                }
+        // Options may appear anywhere; everything else keeps its position.
+        List<String> arguments = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                parseOption(arg);
+            } else {
+                arguments.add(arg);
+            }
+        }
+        args = arguments.toArray(new String[0]);
+        LoxContext context = engine.newContext(System.out, errors);
+
+        if (args.length == 0) {
+            runPrompt(context);
+            return;
+        }
+
+        // Check if the first argument is one of our commands
+        String command = "run";
+        List<String> paths = Arrays.asList(args);
+        if (args.length >= 2 && (args[0].equals("run") || args[0].equals("evaluate") ||
+                args[0].equals("parse") || args[0].equals("tokenize"))) {
+            command = args[0];
+            paths = paths.subList(1, paths.size());
+        }
+
+        if (command.equals("run")) {
+            if (paths.size() == 1 && !Files.isDirectory(Paths.get(paths.get(0)))) {
+                runFile(context, paths.get(0));
             } else {
-                runFile(args[0]);
+                runFiles(context, paths);
             }
+        } else if (paths.size() != 1) {
+            System.out.println("Usage: jlox [script]");
+            System.exit(64);
+        } else if (command.equals("evaluate")) {
+            runEvaluateFile(context, paths.get(0));
+        } else if (command.equals("parse")) {
+            runParseFile(paths.get(0));
+        } else {
+            runTokenizeFile(paths.get(0));
+        }
+    }
+
+    private static void parseOption(String option) {
+        if (option.equals("--engine=vm")) {
+            engine.useVm(true);
+        } else if (option.equals("--engine=ast")) {
+            engine.useVm(false);
+        } else if (option.equals("--specialize")) {
+            engine.enableSpecialization();
+        } else if (option.equals("--jit")) {
+            engine.enableCompilation();
+        } else if (option.equals("--optimize")) {
+            engine.enableOptimization();
+        } else if (option.equals("--tco")) {
+            engine.enableTailCalls();
+        } else if (option.equals("--mmap")) {
+            mapSource = true;
+        } else if (option.equals("--cache")) {
+            engine.cacheIn(Paths.get(System.getProperty("user.home"), ".jlox", "cache"));
+        } else if (option.startsWith("--cache=")) {
+            engine.cacheIn(Paths.get(option.substring("--cache=".length())));
         } else {
-            runPrompt();
+            System.out.println("Usage: jlox [command] [--engine=ast|vm] [--specialize] [--jit] [--optimize] [--tco] [--mmap] [--cache[=dir]] [script]");
+            System.exit(64);
         }
     }
 
-    private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
-
-        // Indicate an error in the exit code.
-        if (hadError) System.exit(65);
-        if (hadRuntimeError) System.exit(70);
+    private static void runFile(LoxContext context, String path) throws IOException {
+        context.run(readFile(path));
+        exitOnError();
     }
     
-    private static void runEvaluateFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        runEvaluate(new String(bytes, Charset.defaultCharset()));
+    // Runs several scripts, and every .lox file under any directory given,
+    // in order as one program. Directories contribute their files sorted by
+    // path. Errors name the file by its path as given, or as found under
+    // its directory.
+    private static void runFiles(LoxContext context, List<String> paths) throws IOException {
+        List<String> names = new ArrayList<>();
+        List<CharSequence> sources = new ArrayList<>();
+        for (String path : paths) {
+            if (!Files.isDirectory(Paths.get(path))) {
+                names.add(path);
+                sources.add(readFile(path));
+                continue;
+            }
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(Paths.get(path))) {
+                files = walk.filter(file -> Files.isRegularFile(file) && file.toString().endsWith(".lox"))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                names.add(file.toString());
+                sources.add(readFile(file.toString()));
+            }
+        }
 
-        // Indicate an error in the exit code.
-        if (hadError) System.exit(65);
-        if (hadRuntimeError) System.exit(70);
+        Program program = engine.compile(names, sources, errors);
+        if (program != null) context.execute(program);
+        exitOnError();
+    }
+
+    private static void runEvaluateFile(LoxContext context, String path) throws IOException {
+        context.evaluate(readFile(path));
+        exitOnError();
     }
     
     private static void runParseFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        runParse(new String(bytes, Charset.defaultCharset()));
-
-        // Indicate an error in the exit code.
-        if (hadError) System.exit(65);
-        if (hadRuntimeError) System.exit(70);
+        runParse(readFile(path));
+        exitOnError();
     }
     
     private static void runTokenizeFile(String path) throws IOException {
+        runTokenize(readFile(path));
+        exitOnError();
+    }
+
+    // With --mmap the file is mapped and scanned as UTF-8 bytes instead of
+    // being read and decoded into a String.
+    private static CharSequence readFile(String path) throws IOException {
+        if (mapSource) return MappedSource.map(path);
         byte[] bytes = Files.readAllBytes(Paths.get(path));
-        runTokenize(new String(bytes, Charset.defaultCharset()));
+        return new String(bytes, Charset.defaultCharset());
+    }
 
-        // Indicate an error in the exit code.
-        if (hadError) System.exit(65);
-        if (hadRuntimeError) System.exit(70);
+    // Indicate an error in the exit code.
+    private static void exitOnError() {
+        if (errors.hadError) System.exit(65);
+        if (errors.hadRuntimeError) System.exit(70);
     }
 
-    private static void runPrompt() throws IOException {
+    private static void runPrompt(LoxContext context) throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
 
@@ -86,2255 +189,7249 @@ public class Main {
             System.out.print("> ");
             String line = reader.readLine();
             if (line == null) break;
-            run(line);
-            hadError = false;
+            context.run(line);
+            errors.hadError = false;
         }
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens, false);
+    private static void runParse(CharSequence source) {
+        Scanner scanner = new Scanner(source, errors);
+        TokenBuffer tokens = scanner.scanTokens();
+        Parser parser = new Parser(tokens, true, errors);
         List<Stmt> statements = parser.parse();
 
         // Stop if there was a syntax error.
-        if (hadError) return;
-        
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
-        
-        // Stop if there was a resolution error.
-        if (hadError) return;
+        if (errors.hadError) return;
 
-        interpreter.interpret(statements);
+        AstPrinter printer = new AstPrinter();
+        for (Stmt stmt : statements) {
+            System.out.println(printer.print(stmt));
+        }
     }
     
-    private static void runEvaluate(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens, true);
-        List<Stmt> statements = parser.parse();
-
-        // Stop if there was a syntax error.
-        if (hadError) return;
-        
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
-        
-        // Stop if there was a resolution error.
-        if (hadError) return;
+    private static void runTokenize(CharSequence source) {
+        Scanner scanner = new Scanner(source, errors);
 
-        interpreter.interpretAndPrint(statements);
+        // Print the tokens as they are scanned, through a buffer that is only
+        // flushed when full or at the end.
+        PrintStream out = new PrintStream(
+                new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+        scanner.scanTokens(new TokenPrinter(source, out));
+        out.flush();
     }
-    
-    private static void runParse(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens, true);
-        List<Stmt> statements = parser.parse();
+}
 
-        // Stop if there was a syntax error.
-        if (hadError) return;
+// -------------------- Embedding API --------------------
+// Entry point for running Lox inside another application. An engine holds
+// the options, compiles source into Programs and creates LoxContexts. Each
+// context has its own globals, output stream and ErrorReporter, and runs on
+// one thread at a time. A Program keeps no per-run state, so any number of
+// contexts can execute the same one in parallel.
+class LoxEngine {
+    volatile boolean useVm = false;
+    volatile boolean specialize = false;
+    volatile boolean compile = false;
+    volatile boolean optimize = false;
+    volatile boolean tailCalls = false;
+    volatile ProgramCache cache;
 
-        AstPrinter printer = new AstPrinter();
-        for (Stmt stmt : statements) {
-            System.out.println(printer.print(stmt));
-        }
+    // Options apply to contexts created afterwards.
+    void useVm(boolean useVm) {
+        this.useVm = useVm;
     }
-    
-    private static void runTokenize(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
 
-        // Print all tokens
-        for (Token token : tokens) {
-            String literal = "null";
-            if (token.literal != null) {
-                literal = token.literal.toString();
-            }
-            System.out.println(token.type + " " + token.lexeme + " " + literal);
-        }
+    void enableSpecialization() {
+        specialize = true;
     }
 
-    static void error(int line, String message) {
-        report(line, "", message);
+    void enableCompilation() {
+        compile = true;
     }
 
-    private static void report(int line, String where, String message) {
-        System.err.println(
-                "[line " + line + "] Error" + where + ": " + message);
-        hadError = true;
+    // Runs the Optimizer over every script compiled from now on.
+    void enableOptimization() {
+        optimize = true;
     }
 
-    static void error(Token token, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
-        } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
-        }
+    void enableTailCalls() {
+        tailCalls = true;
     }
 
-    static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() +
-                "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
+    // Keeps compiled scripts in the directory, so compiling a script that
+    // has been compiled before only loads it back.
+    void cacheIn(Path directory) {
+        cache = new ProgramCache(directory);
     }
-}
 
-// -------------------- TokenType --------------------
-enum TokenType {
-    // Single-character tokens.
-    LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE,
-    COMMA, DOT, MINUS, PLUS, SEMICOLON, SLASH, STAR,
+    LoxContext newContext(PrintStream out, ErrorReporter errors) {
+        return new LoxContext(this, out, errors);
+    }
 
-    // One or two character tokens.
-    BANG, BANG_EQUAL,
-    EQUAL, EQUAL_EQUAL,
-    GREATER, GREATER_EQUAL,
-    LESS, LESS_EQUAL,
+    // Scans, parses and resolves a script. Returns null after reporting
+    // any error.
+    Program compile(CharSequence source, ErrorReporter errors) {
+        ProgramCache cache = this.cache;
+        if (cache == null) return compile(source, false, errors);
 
-    // Literals.
-    IDENTIFIER, STRING, NUMBER,
+        byte[] key = ProgramCache.key(source, optimize);
+        Program program = cache.load(key, null);
+        if (program != null) return program;
 
-    // Keywords.
-    AND, CLASS, ELSE, FALSE, FUN, FOR, IF, NIL, OR,
-    PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE,
+        // Only scripts without errors are saved, so errors are reported
+        // every time.
+        program = compile(source, false, errors);
+        if (program != null) cache.store(key, program);
+        return program;
+    }
 
-    EOF
-}
+    // With allowExpression, a lone expression is accepted as the program,
+    // as the evaluate and parse commands do.
+    Program compile(CharSequence source, boolean allowExpression, ErrorReporter errors) {
+        boolean hadError = errors.hadError;
+        errors.hadError = false;
+        try {
+            Scanner scanner = new Scanner(source, errors);
+            TokenBuffer tokens = scanner.scanTokens();
+            Parser parser = new Parser(tokens, allowExpression, errors);
+            List<Stmt> statements = parser.parse();
 
-// -------------------- Token --------------------
-class Token {
-    final TokenType type;
-    final String lexeme;
-    final Object literal;
-    final int line;
+            // Stop if there was a syntax error.
+            if (errors.hadError) return null;
 
-    Token(TokenType type, String lexeme, Object literal, int line) {
-        this.type = type;
-        this.lexeme = lexeme;
-        this.literal = literal;
-        this.line = line;
+            Resolver resolver = new Resolver(errors);
+            resolver.resolve(statements);
+
+            // Stop if there was a resolution error.
+            if (errors.hadError) return null;
+
+            // A lone expression is printed; keep it as written.
+            if (optimize && !allowExpression) return optimize(statements, errors);
+            return new Program(statements, resolver.frameSize());
+        } finally {
+            errors.hadError |= hadError;
+        }
     }
 
-    public String toString() {
-        return type + " " + lexeme + " " + literal;
+    // The nodes the Optimizer creates have no slots or depths yet, so the
+    // result is resolved again. It can't fail: the optimized tree only has
+    // scopes the original had.
+    private static Program optimize(List<Stmt> statements, ErrorReporter errors) {
+        List<Stmt> optimized = new Optimizer().optimize(statements);
+        Resolver resolver = new Resolver(errors);
+        resolver.resolve(optimized);
+        return new Program(optimized, resolver.frameSize());
     }
-}
 
-class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
-    String print(Stmt stmt) {
-        return stmt.accept(this);
+    // Compiles several scripts into one program that runs them in order,
+    // as if they were concatenated. The files are scanned and parsed in
+    // parallel; their errors are reported in the order of the files, and
+    // resolution only starts once every file has parsed. Errors name the
+    // script they are in by its entry in names.
+    Program compile(List<String> names, List<? extends CharSequence> sources, ErrorReporter errors) {
+        ProgramCache cache = this.cache;
+        boolean optimize = this.optimize;
+        List<ForkJoinTask<ParsedSource>> tasks = new ArrayList<>();
+        for (int i = 0; i < sources.size(); i++) {
+            String name = names.get(i);
+            CharSequence source = sources.get(i);
+            tasks.add(ForkJoinPool.commonPool().submit(() -> parse(name, source, cache, optimize)));
+        }
+
+        boolean hadError = errors.hadError;
+        errors.hadError = false;
+        try {
+            List<ParsedSource> parsed = new ArrayList<>();
+            for (ForkJoinTask<ParsedSource> task : tasks) {
+                ParsedSource source = task.join();
+                source.errors.replayTo(errors);
+                parsed.add(source);
+            }
+
+            // Stop if there was a syntax error.
+            if (errors.hadError) return null;
+
+            Resolver resolver = new Resolver(errors);
+            for (ParsedSource source : parsed) {
+                if (source.program == null) resolver.resolve(source.statements);
+            }
+
+            // Stop if there was a resolution error.
+            if (errors.hadError) return null;
+
+            // The files run one after another, so their top-level code can
+            // share one frame.
+            List<Stmt> statements = new ArrayList<>();
+            int frameSize = 0;
+            for (ParsedSource source : parsed) {
+                Program compiled = source.program;
+                if (compiled == null) {
+                    compiled = optimize ? optimize(source.statements, errors)
+                                        : new Program(source.statements, resolver.frameSize());
+                    if (cache != null) cache.store(source.key, compiled);
+                }
+                statements.addAll(compiled.statements);
+                frameSize = Math.max(frameSize, compiled.frameSize);
+            }
+            return new Program(statements, frameSize);
+        } finally {
+            errors.hadError |= hadError;
+        }
     }
 
-    String print(Expr expr) {
-        return expr.accept(this);
+    // Runs on a pool thread, so errors go to a buffer of the file's own.
+    private static ParsedSource parse(String name, CharSequence source, ProgramCache cache,
+                                      boolean optimize) {
+        BufferedErrorReporter errors = new BufferedErrorReporter();
+        byte[] key = null;
+        if (cache != null) {
+            key = ProgramCache.key(source, optimize);
+            Program program = cache.load(key, name);
+            if (program != null) return new ParsedSource(program.statements, program, key, errors);
+        }
+
+        Scanner scanner = new Scanner(source, name, errors);
+        Parser parser = new Parser(scanner.scanTokens(), errors);
+        return new ParsedSource(parser.parse(), null, key, errors);
     }
-    
-    @Override
-    public String visitBlockStmt(Stmt.Block stmt) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("(block ");
-        
-        for (Stmt statement : stmt.statements) {
-            builder.append(print(statement));
-            builder.append(" ");
+
+    private static class ParsedSource {
+        final List<Stmt> statements;
+        // The resolved program, when the statements came from the cache.
+        final Program program;
+        final byte[] key;
+        final BufferedErrorReporter errors;
+
+        ParsedSource(List<Stmt> statements, Program program, byte[] key, BufferedErrorReporter errors) {
+            this.statements = statements;
+            this.program = program;
+            this.key = key;
+            this.errors = errors;
         }
-        
-        builder.append(")");
-        return builder.toString();
     }
-    
-    @Override
-    public String visitExpressionStmt(Stmt.Expression stmt) {
-        return print(stmt.expression);
+}
+
+// A resolved script, ready to run in any context.
+class Program {
+    final List<Stmt> statements;
+    // Frame slots the top-level code needs; see Resolver.
+    final int frameSize;
+    private volatile VmFunction script;
+
+    Program(List<Stmt> statements, int frameSize) {
+        this.statements = statements;
+        this.frameSize = frameSize;
     }
-    
-    @Override
-    public String visitFunctionStmt(Stmt.Function stmt) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("(fun " + stmt.name.lexeme + "(");
-        
-        for (int i = 0; i < stmt.params.size(); i++) {
-            if (i > 0) builder.append(" ");
-            builder.append(stmt.params.get(i).lexeme);
+
+    // Bytecode for the VM, compiled on first use and shared from then on.
+    VmFunction script() {
+        VmFunction script = this.script;
+        if (script == null) {
+            script = new VmCompiler().compile(statements);
+            this.script = script;
         }
-        
-        builder.append(") ");
-        
-        for (Stmt body : stmt.body) {
-            builder.append(print(body));
+        return script;
+    }
+}
+
+class LoxContext {
+    private final LoxEngine engine;
+    private final PrintStream out;
+    private final ErrorReporter errors;
+    private final boolean useVm;
+    private final boolean specialize;
+    private final boolean compile;
+    private final boolean tailCalls;
+    // Created on first use; each keeps its own globals.
+    private Interpreter interpreter;
+    private Vm vm;
+
+    LoxContext(LoxEngine engine, PrintStream out, ErrorReporter errors) {
+        this.engine = engine;
+        this.out = out;
+        this.errors = errors;
+        this.useVm = engine.useVm;
+        this.specialize = engine.specialize;
+        this.compile = engine.compile;
+        this.tailCalls = engine.tailCalls;
+    }
+
+    // Compiles and runs a script, reporting errors to this context.
+    void run(CharSequence source) {
+        Program program = engine.compile(source, errors);
+        if (program != null) execute(program);
+    }
+
+    // Runs a script that may be a lone expression, printing its value.
+    void evaluate(CharSequence source) {
+        Program program = engine.compile(source, true, errors);
+        if (program == null) return;
+
+        // Printing the value is just what a print statement does, so either
+        // engine can run it.
+        List<Stmt> statements = program.statements;
+        if (statements.size() == 1 && statements.get(0) instanceof Stmt.Expression) {
+            Expr expression = ((Stmt.Expression) statements.get(0)).expression;
+            program = new Program(Collections.<Stmt>singletonList(new Stmt.Print(expression)),
+                                  program.frameSize);
+        }
+        execute(program);
+    }
+
+    void execute(Program program) {
+        if (useVm) {
+            vm().interpret(program.script());
+        } else {
+            interpreter().interpret(program.statements, program.frameSize);
         }
-        
-        builder.append(")");
-        return builder.toString();
     }
-    
-    @Override
-    public String visitIfStmt(Stmt.If stmt) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("(if ");
-        builder.append(print(stmt.condition));
-        builder.append(" ");
-        builder.append(print(stmt.thenBranch));
-        
-        if (stmt.elseBranch != null) {
-            builder.append(" ");
-            builder.append(print(stmt.elseBranch));
+
+    private Interpreter interpreter() {
+        if (interpreter == null) {
+            interpreter = new Interpreter(out, errors);
+            if (specialize) interpreter.enableSpecialization();
+            if (compile) interpreter.enableCompilation();
+            if (tailCalls) interpreter.enableTailCalls();
         }
-        
-        builder.append(")");
-        return builder.toString();
+        return interpreter;
     }
-    
-    @Override
-    public String visitPrintStmt(Stmt.Print stmt) {
-        return parenthesize("print", stmt.expression);
+
+    private Vm vm() {
+        if (vm == null) vm = new Vm(out, errors);
+        return vm;
     }
-    
-    @Override
-    public String visitReturnStmt(Stmt.Return stmt) {
-        if (stmt.value == null) return "(return)";
-        return "(return " + print(stmt.value) + ")";
+}
+
+// Receives the errors found while compiling or running. This one prints
+// them in the command line's format; subclasses can send them elsewhere.
+class ErrorReporter {
+    private final PrintStream err;
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+
+    ErrorReporter(PrintStream err) {
+        this.err = err;
     }
-    
-    @Override
-    public String visitVarStmt(Stmt.Var stmt) {
-        if (stmt.initializer == null) {
-            return parenthesize("var", new Expr.Variable(stmt.name));
+
+    // The source is the script's name, or null when there is only one.
+    void error(String source, int line, String message) {
+        report(source, line, "", message);
+    }
+
+    void error(Token token, String message) {
+        if (token.type == TokenType.EOF) {
+            report(token.source, token.line, " at end", message);
+        } else {
+            report(token.source, token.line, " at '" + token.lexeme + "'", message);
         }
-        
-        return parenthesize("var", new Expr.Variable(stmt.name), stmt.initializer);
     }
-    
-    @Override
-    public String visitWhileStmt(Stmt.While stmt) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("(while ");
-        builder.append(print(stmt.condition));
-        builder.append(" ");
-        builder.append(print(stmt.body));
-        builder.append(")");
-        return builder.toString();
+
+    void report(String source, int line, String where, String message) {
+        err.println(
+                "[" + location(source, line) + "] Error" + where + ": " + message);
+        hadError = true;
     }
 
-    // Add this method to the AstPrinter class
-    @Override
-    public String visitClassStmt(Stmt.Class stmt) {
-        return "(class " + stmt.name.lexeme + ")";
+    void runtimeError(RuntimeError error) {
+        err.println(error.getMessage() +
+                "\n[" + location(error.source, error.line) + "]");
+        hadRuntimeError = true;
     }
 
-    @Override
-    public String visitThisExpr(Expr.This expr) {
-        return "this";
+    // "line 2", or "a.lox line 2" in a program of several scripts.
+    static String location(String source, int line) {
+        return source == null ? "line " + line : source + " line " + line;
     }
-    
-    @Override
-    public String visitAssignExpr(Expr.Assign expr) {
-        return parenthesize("=", new Expr.Variable(expr.name), expr.value);
+}
+
+// Holds compile errors back until replayTo() passes them on, so work done
+// in parallel can still report in a fixed order.
+class BufferedErrorReporter extends ErrorReporter {
+    private final List<Report> reports = new ArrayList<>();
+
+    BufferedErrorReporter() {
+        super(null);
     }
-    
+
     @Override
-    public String visitBinaryExpr(Expr.Binary expr) {
-        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+    void report(String source, int line, String where, String message) {
+        reports.add(new Report(source, line, where, message));
+        hadError = true;
     }
-    
-    @Override
-    public String visitCallExpr(Expr.Call expr) {
-        StringBuilder builder = new StringBuilder();
-        
-        builder.append("(call ");
-        builder.append(print(expr.callee));
-        
-        for (Expr argument : expr.arguments) {
-            builder.append(" ");
-            builder.append(print(argument));
+
+    void replayTo(ErrorReporter errors) {
+        for (Report report : reports) {
+            errors.report(report.source, report.line, report.where, report.message);
         }
-        
-        builder.append(")");
-        return builder.toString();
-    }
-    
-    @Override
-    public String visitGroupingExpr(Expr.Grouping expr) {
-        return parenthesize("group", expr.expression);
-    }
-    
-    @Override
-    public String visitLiteralExpr(Expr.Literal expr) {
-        if (expr.value == null) return "nil";
-        
-        if (expr.value instanceof String) {
-            return expr.value.toString();
-        }
-        
-        return expr.value.toString();
-    }
-    
-    @Override
-    public String visitLogicalExpr(Expr.Logical expr) {
-        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
-    }
-    
-    @Override
-    public String visitUnaryExpr(Expr.Unary expr) {
-        return parenthesize(expr.operator.lexeme, expr.right);
-    }
-    
-    @Override
-    public String visitVariableExpr(Expr.Variable expr) {
-        return expr.name.lexeme;
     }
 
-    @Override
-    public String visitGetExpr(Expr.Get expr) {
-        return parenthesize("get", expr.object) + "." + expr.name.lexeme;
-    }
-
-    @Override
-    public String visitSetExpr(Expr.Set expr) {
-        return parenthesize("set", expr.object) + "." + expr.name.lexeme;
-    }
+    private static class Report {
+        final String source;
+        final int line;
+        final String where;
+        final String message;
 
-    @Override
-    public String visitSuperExpr(Expr.Super expr) {
-        return "(super." + expr.method.lexeme + ")";
-    }
-    
-    private String parenthesize(String name, Expr... exprs) {
-        StringBuilder builder = new StringBuilder();
-        
-        builder.append("(").append(name);
-        for (Expr expr : exprs) {
-            builder.append(" ");
-            builder.append(print(expr));
+        Report(String source, int line, String where, String message) {
+            this.source = source;
+            this.line = line;
+            this.where = where;
+            this.message = message;
         }
-        builder.append(")");
-        
-        return builder.toString();
     }
 }
 
-// -------------------- RuntimeError --------------------
-class RuntimeError extends RuntimeException {
-    final Token token;
-
-    RuntimeError(Token token, String message) {
-        super(message);
-        this.token = token;
+// -------------------- Program Cache --------------------
+// Resolved programs saved as .loxc files, so an unchanged script skips the
+// scanner, parser and resolver. A file is named by the SHA-256 of the
+// script and holds the tree with its resolved depths, slots and frame
+// sizes, and the lines of its tokens. Loading maps the file and rebuilds
+// the tree directly from the bytes.
+//
+// Layout: magic, format version, the key again, then the statement count
+// and the statements in prefix order. Each node is a tag byte followed by
+// its fields. Strings are numbered in order of first use: a string's first
+// occurrence is its number followed by its UTF-8 bytes, later ones repeat
+// only the number.
+class ProgramCache {
+    private static final int MAGIC = 0x4C4F5843; // "LOXC"
+    // Bump whenever the tree or this encoding changes.
+    private static final int FORMAT_VERSION = 8;
+
+    private final Path directory;
+
+    ProgramCache(Path directory) {
+        this.directory = directory;
+    }
+
+    // Optimized and unoptimized trees of a script are kept apart.
+    static byte[] key(CharSequence source, boolean optimized) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to provide SHA-256.
+            throw new IllegalStateException(e);
+        }
+        digest.update((byte) FORMAT_VERSION);
+        digest.update((byte) (optimized ? 1 : 0));
+        if (source instanceof MappedSource) {
+            digest.update(((MappedSource) source).bytes());
+        } else {
+            digest.update(source.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return digest.digest();
     }
-}
 
-// -------------------- Return --------------------
-class Return extends RuntimeException {
-    final Object value;
-    
-    Return(Object value) {
-        super(null, null, false, false);
-        this.value = value;
+    // Returns the program saved under the key, or null if there is none or
+    // it can't be read. Its tokens get the source name; see Token.source.
+    Program load(byte[] key, String source) {
+        Path file = fileFor(key);
+        if (!Files.isRegularFile(file)) return null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new Reader(bytes, source).program(key);
+        } catch (IOException | RuntimeException e) {
+            // A truncated or foreign file is just a miss; store() replaces it.
+            return null;
+        }
     }
-}
 
-// -------------------- Abstract Syntax Tree Classes --------------------
-abstract class Expr {
-    interface Visitor<R> {
-        R visitAssignExpr(Assign expr);
-        R visitBinaryExpr(Binary expr);
-        R visitCallExpr(Call expr);
-        R visitGetExpr(Get expr);  // Add this
-        R visitGroupingExpr(Grouping expr);
-        R visitLiteralExpr(Literal expr);
-        R visitLogicalExpr(Logical expr);
-        R visitSetExpr(Set expr);  // Add this
-        R visitUnaryExpr(Unary expr);
-        R visitVariableExpr(Variable expr);
-        R visitThisExpr(This expr);
-        R visitSuperExpr(Super expr);
-    }
+    // Saves the program, ignoring failures: the cache only saves time.
+    void store(byte[] key, Program program) {
+        try {
+            Files.createDirectories(directory);
+            Writer writer = new Writer();
+            writer.program(key, program);
+
+            // Write to a temporary file and rename it, so concurrent runs
+            // never see a partial file.
+            Path temporary = Files.createTempFile(directory, "program", ".tmp");
+            try {
+                Files.write(temporary, writer.toByteArray());
+                try {
+                    Files.move(temporary, fileFor(key), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporary, fileFor(key), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException e) {
+            // Run without the cache.
+        }
+    }
+
+    private Path fileFor(byte[] key) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : key) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16));
+            name.append(Character.forDigit(b & 0xF, 16));
+        }
+        return directory.resolve(name.append(".loxc").toString());
+    }
+
+    // Node tags.
+    private static final byte NONE = 0;
+    private static final byte ASSIGN = 1;
+    private static final byte BINARY = 2;
+    private static final byte CALL = 3;
+    private static final byte GET = 4;
+    private static final byte GROUPING = 5;
+    private static final byte LITERAL = 6;
+    private static final byte LOGICAL = 7;
+    private static final byte SET = 8;
+    private static final byte UNARY = 9;
+    private static final byte VARIABLE = 10;
+    private static final byte THIS = 11;
+    private static final byte SUPER = 12;
+    private static final byte BLOCK = 20;
+    private static final byte EXPRESSION = 21;
+    private static final byte FUNCTION = 22;
+    private static final byte CLASS = 23;
+    private static final byte IF = 24;
+    private static final byte PRINT = 25;
+    private static final byte RETURN = 26;
+    private static final byte VAR = 27;
+    private static final byte WHILE = 28;
+    private static final byte FOR = 29;
+
+    // Literal value tags.
+    private static final byte NIL_VALUE = 0;
+    private static final byte FALSE_VALUE = 1;
+    private static final byte TRUE_VALUE = 2;
+    private static final byte NUMBER_VALUE = 3;
+    private static final byte STRING_VALUE = 4;
+
+    private static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        void program(byte[] key, Program program) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.write(key);
+            out.writeInt(program.frameSize);
+            out.writeInt(program.statements.size());
+            try {
+                for (Stmt statement : program.statements) {
+                    statement.accept(this);
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
 
-    abstract <R> R accept(Visitor<R> visitor);
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
 
-    static class Assign extends Expr {
-        final Token name;
-        final Expr value;
+        // The visitors can't throw IOException, so these wrap it.
+        private void tag(byte tag) {
+            try {
+                out.writeByte(tag);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
 
-        Assign(Token name, Expr value) {
-            this.name = name;
-            this.value = value;
+        private void integer(int value) {
+            try {
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
 
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitAssignExpr(this);
+        private void string(String value) {
+            try {
+                Integer index = strings.get(value);
+                if (index != null) {
+                    out.writeInt(index);
+                    return;
+                }
+                out.writeInt(strings.size());
+                strings.put(value, strings.size());
+                byte[] text = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(text.length);
+                out.write(text);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
-    }
 
-    static class Binary extends Expr {
-        final Expr left;
-        final Token operator;
-        final Expr right;
+        private void value(Object value) {
+            if (value == null) {
+                tag(NIL_VALUE);
+            } else if (value instanceof Boolean) {
+                tag((Boolean) value ? TRUE_VALUE : FALSE_VALUE);
+            } else if (value instanceof Double) {
+                tag(NUMBER_VALUE);
+                try {
+                    out.writeDouble((Double) value);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                tag(STRING_VALUE);
+                string(value.toString());
+            }
+        }
 
-        Binary(Expr left, Token operator, Expr right) {
-            this.left = left;
-            this.operator = operator;
-            this.right = right;
+        private void token(Token token) {
+            tag((byte) token.type.ordinal());
+            string(token.lexeme);
+            value(token.literal);
+            integer(token.line);
         }
 
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitBinaryExpr(this);
+        private void expr(Expr expr) {
+            if (expr == null) {
+                tag(NONE);
+            } else {
+                expr.accept(this);
+            }
         }
-    }
 
-    static class Call extends Expr {
-        final Expr callee;
-        final Token paren;
-        final List<Expr> arguments;
+        private void stmt(Stmt stmt) {
+            if (stmt == null) {
+                tag(NONE);
+            } else {
+                stmt.accept(this);
+            }
+        }
 
-        Call(Expr callee, Token paren, List<Expr> arguments) {
-            this.callee = callee;
-            this.paren = paren;
-            this.arguments = arguments;
+        private void statements(List<Stmt> statements) {
+            integer(statements.size());
+            for (Stmt statement : statements) {
+                statement.accept(this);
+            }
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitCallExpr(this);
+        public Void visitAssignExpr(Expr.Assign expr) {
+            tag(ASSIGN);
+            token(expr.name);
+            expr(expr.value);
+            integer(expr.depth);
+            integer(expr.slot);
+            return null;
         }
-    }
-
-    static class Grouping extends Expr {
-        final Expr expression;
 
-        Grouping(Expr expression) {
-            this.expression = expression;
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            tag(BINARY);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitGroupingExpr(this);
+        public Void visitCallExpr(Expr.Call expr) {
+            tag(CALL);
+            expr(expr.callee);
+            token(expr.paren);
+            integer(expr.arguments.size());
+            for (Expr argument : expr.arguments) {
+                expr(argument);
+            }
+            return null;
         }
-    }
-
-    static class Literal extends Expr {
-        final Object value;
 
-        Literal(Object value) {
-            this.value = value;
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            tag(GET);
+            expr(expr.object);
+            token(expr.name);
+            return null;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitLiteralExpr(this);
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            tag(GROUPING);
+            expr(expr.expression);
+            return null;
         }
-    }
-
-    static class Logical extends Expr {
-        final Expr left;
-        final Token operator;
-        final Expr right;
 
-        Logical(Expr left, Token operator, Expr right) {
-            this.left = left;
-            this.operator = operator;
-            this.right = right;
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            tag(LITERAL);
+            value(expr.value);
+            return null;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitLogicalExpr(this);
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            tag(LOGICAL);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
         }
-    }
 
-    static class Unary extends Expr {
-        final Token operator;
-        final Expr right;
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            tag(SET);
+            expr(expr.object);
+            token(expr.name);
+            expr(expr.value);
+            return null;
+        }
 
-        Unary(Token operator, Expr right) {
-            this.operator = operator;
-            this.right = right;
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            tag(UNARY);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitUnaryExpr(this);
+        public Void visitVariableExpr(Expr.Variable expr) {
+            tag(VARIABLE);
+            token(expr.name);
+            integer(expr.depth);
+            integer(expr.slot);
+            return null;
         }
-    }
 
-    static class Variable extends Expr {
-        final Token name;
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            tag(THIS);
+            token(expr.keyword);
+            integer(expr.depth);
+            integer(expr.slot);
+            return null;
+        }
 
-        Variable(Token name) {
-            this.name = name;
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            tag(SUPER);
+            token(expr.keyword);
+            token(expr.method);
+            integer(expr.depth);
+            integer(expr.slot);
+            integer(expr.thisDepth);
+            integer(expr.thisSlot);
+            return null;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitVariableExpr(this);
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            tag(BLOCK);
+            statements(stmt.statements);
+            integer(stmt.slotCount);
+            tag(stmt.scoped ? TRUE_VALUE : FALSE_VALUE);
+            return null;
         }
-    }
 
-    static class Get extends Expr {
-        final Expr object;
-        final Token name;
-    
-        Get(Expr object, Token name) {
-            this.object = object;
-            this.name = name;
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            tag(EXPRESSION);
+            expr(stmt.expression);
+            return null;
         }
-    
+
         @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitGetExpr(this);
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            tag(FUNCTION);
+            token(stmt.name);
+            integer(stmt.params.size());
+            for (Token param : stmt.params) {
+                token(param);
+            }
+            statements(stmt.body);
+            integer(stmt.slot);
+            tag(stmt.inFrame ? TRUE_VALUE : FALSE_VALUE);
+            for (int i = 0; i < stmt.paramSlots.length; i++) {
+                integer(stmt.paramSlots[i]);
+                tag(stmt.paramInFrame[i] ? TRUE_VALUE : FALSE_VALUE);
+            }
+            integer(stmt.thisSlot);
+            tag(stmt.thisInFrame ? TRUE_VALUE : FALSE_VALUE);
+            integer(stmt.slotCount);
+            integer(stmt.frameSize);
+            return null;
         }
-    }
-    
-    static class Set extends Expr {
-        final Expr object;
-        final Token name;
-        final Expr value;
-    
-        Set(Expr object, Token name, Expr value) {
-            this.object = object;
-            this.name = name;
-            this.value = value;
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            tag(CLASS);
+            token(stmt.name);
+            expr(stmt.superclass);
+            integer(stmt.methods.size());
+            for (Stmt.Function method : stmt.methods) {
+                method.accept(this);
+            }
+            integer(stmt.slot);
+            tag(stmt.inFrame ? TRUE_VALUE : FALSE_VALUE);
+            return null;
         }
-    
+
         @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitSetExpr(this);
+        public Void visitIfStmt(Stmt.If stmt) {
+            tag(IF);
+            expr(stmt.condition);
+            stmt(stmt.thenBranch);
+            stmt(stmt.elseBranch);
+            return null;
         }
-    }
 
-    static class This extends Expr {
-        final Token keyword;
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            tag(PRINT);
+            expr(stmt.expression);
+            return null;
+        }
 
-        This(Token keyword) {
-            this.keyword = keyword;
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            tag(RETURN);
+            token(stmt.keyword);
+            expr(stmt.value);
+            tag(stmt.tailCall ? TRUE_VALUE : FALSE_VALUE);
+            return null;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitThisExpr(this);
-        }
-    }
-
-    static class Super extends Expr {
-        final Token keyword;
-        final Token method;
-
-        Super(Token keyword, Token method) {
-            this.keyword = keyword;
-            this.method = method;
+        public Void visitVarStmt(Stmt.Var stmt) {
+            tag(VAR);
+            token(stmt.name);
+            expr(stmt.initializer);
+            integer(stmt.slot);
+            tag(stmt.inFrame ? TRUE_VALUE : FALSE_VALUE);
+            return null;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitSuperExpr(this);
-        }
-    }
-}
-
-abstract class Stmt {
-    interface Visitor<R> {
-        R visitBlockStmt(Block stmt);
-        R visitExpressionStmt(Expression stmt);
-        R visitFunctionStmt(Function stmt);
-        R visitClassStmt(Class stmt);
-        R visitIfStmt(If stmt);
-        R visitPrintStmt(Print stmt);
-        R visitReturnStmt(Return stmt);
-        R visitVarStmt(Var stmt);
-        R visitWhileStmt(While stmt);
-    }
-
-    abstract <R> R accept(Visitor<R> visitor);
-
-    static class Block extends Stmt {
-        final List<Stmt> statements;
-
-        Block(List<Stmt> statements) {
-            this.statements = statements;
+        public Void visitWhileStmt(Stmt.While stmt) {
+            tag(WHILE);
+            expr(stmt.condition);
+            stmt(stmt.body);
+            return null;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitBlockStmt(this);
+        public Void visitForStmt(Stmt.For stmt) {
+            tag(FOR);
+            stmt(stmt.initializer);
+            expr(stmt.condition);
+            expr(stmt.increment);
+            stmt(stmt.body);
+            integer(stmt.slotCount);
+            return null;
         }
     }
 
-    static class Class extends Stmt {
-        final Token name;
-        final Expr.Variable superclass;  // Add this field
-        final List<Stmt.Function> methods;
+    // Rebuilds a program from the layout the Writer produced. Anything
+    // unexpected surfaces as a RuntimeException, which load() treats as a
+    // miss.
+    private static class Reader {
+        private static final TokenType[] TYPES = TokenType.values();
 
-        Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {  // Update constructor
-            this.name = name;
-            this.superclass = superclass;
-            this.methods = methods;
-        }
+        private final ByteBuffer in;
+        // Given to every token; not saved, since the key is the content.
+        private final String source;
+        private final List<String> strings = new ArrayList<>();
 
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitClassStmt(this);
+        Reader(ByteBuffer in, String source) {
+            this.in = in;
+            this.source = source;
         }
-    }
-
-    static class Expression extends Stmt {
-        final Expr expression;
 
-        Expression(Expr expression) {
-            this.expression = expression;
-        }
+        Program program(byte[] key) {
+            if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION) return null;
+            byte[] stored = new byte[key.length];
+            in.get(stored);
+            if (!Arrays.equals(stored, key)) return null;
 
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitExpressionStmt(this);
+            int frameSize = in.getInt();
+            List<Stmt> statements = statements();
+            if (in.hasRemaining()) return null;
+            return new Program(statements, frameSize);
         }
-    }
-
-    static class Function extends Stmt {
-        final Token name;
-        final List<Token> params;
-        final List<Stmt> body;
 
-        Function(Token name, List<Token> params, List<Stmt> body) {
-            this.name = name;
-            this.params = params;
-            this.body = body;
-        }
+        private String string() {
+            int index = in.getInt();
+            if (index < strings.size()) return strings.get(index);
+            if (index != strings.size()) throw new IllegalStateException("Bad string index.");
 
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitFunctionStmt(this);
+            byte[] text = new byte[in.getInt()];
+            in.get(text);
+            String value = new String(text, StandardCharsets.UTF_8);
+            strings.add(value);
+            return value;
         }
-    }
-
-    static class If extends Stmt {
-        final Expr condition;
-        final Stmt thenBranch;
-        final Stmt elseBranch;
 
-        If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
-            this.condition = condition;
-            this.thenBranch = thenBranch;
-            this.elseBranch = elseBranch;
+        private Object value() {
+            byte tag = in.get();
+            switch (tag) {
+                case NIL_VALUE: return null;
+                case FALSE_VALUE: return false;
+                case TRUE_VALUE: return true;
+                case NUMBER_VALUE: return in.getDouble();
+                case STRING_VALUE: return LoxString.of(string());
+                default: throw new IllegalStateException("Bad value tag " + tag + ".");
+            }
         }
 
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitIfStmt(this);
+        private Token token() {
+            TokenType type = TYPES[in.get()];
+            String lexeme = string();
+            Object literal = value();
+            return new Token(type, lexeme, literal, in.getInt(), source);
         }
-    }
-
-    static class Print extends Stmt {
-        final Expr expression;
 
-        Print(Expr expression) {
-            this.expression = expression;
+        private List<Stmt> statements() {
+            int count = in.getInt();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                statements.add(stmt());
+            }
+            return statements;
+        }
+
+        private Expr expr() {
+            byte tag = in.get();
+            switch (tag) {
+                case NONE:
+                    return null;
+                case ASSIGN: {
+                    Expr.Assign expr = new Expr.Assign(token(), expr());
+                    expr.depth = in.getInt();
+                    expr.slot = in.getInt();
+                    return expr;
+                }
+                case BINARY:
+                    return new Expr.Binary(expr(), token(), expr());
+                case CALL: {
+                    Expr callee = expr();
+                    Token paren = token();
+                    int count = in.getInt();
+                    List<Expr> arguments = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        arguments.add(expr());
+                    }
+                    return new Expr.Call(callee, paren, arguments);
+                }
+                case GET:
+                    return new Expr.Get(expr(), token());
+                case GROUPING:
+                    return new Expr.Grouping(expr());
+                case LITERAL:
+                    return new Expr.Literal(value());
+                case LOGICAL:
+                    return new Expr.Logical(expr(), token(), expr());
+                case SET:
+                    return new Expr.Set(expr(), token(), expr());
+                case UNARY:
+                    return new Expr.Unary(token(), expr());
+                case VARIABLE:
+                    return variable();
+                case THIS: {
+                    Expr.This expr = new Expr.This(token());
+                    expr.depth = in.getInt();
+                    expr.slot = in.getInt();
+                    return expr;
+                }
+                case SUPER: {
+                    Expr.Super expr = new Expr.Super(token(), token());
+                    expr.depth = in.getInt();
+                    expr.slot = in.getInt();
+                    expr.thisDepth = in.getInt();
+                    expr.thisSlot = in.getInt();
+                    return expr;
+                }
+                default:
+                    throw new IllegalStateException("Bad expression tag " + tag + ".");
+            }
         }
 
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitPrintStmt(this);
+        private Expr.Variable variable() {
+            Expr.Variable expr = new Expr.Variable(token());
+            expr.depth = in.getInt();
+            expr.slot = in.getInt();
+            return expr;
         }
-    }
 
-    static class Return extends Stmt {
-        final Token keyword;
-        final Expr value;
-
-        Return(Token keyword, Expr value) {
-            this.keyword = keyword;
-            this.value = value;
+        private Stmt stmt() {
+            byte tag = in.get();
+            switch (tag) {
+                case NONE:
+                    return null;
+                case BLOCK: {
+                    Stmt.Block stmt = new Stmt.Block(statements());
+                    stmt.slotCount = in.getInt();
+                    stmt.scoped = in.get() == TRUE_VALUE;
+                    return stmt;
+                }
+                case EXPRESSION:
+                    return new Stmt.Expression(expr());
+                case FUNCTION:
+                    return function();
+                case CLASS: {
+                    Token name = token();
+                    Expr.Variable superclass = null;
+                    byte superclassTag = in.get();
+                    if (superclassTag == VARIABLE) {
+                        superclass = variable();
+                    } else if (superclassTag != NONE) {
+                        throw new IllegalStateException("Bad superclass tag " + superclassTag + ".");
+                    }
+                    int count = in.getInt();
+                    List<Stmt.Function> methods = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        if (in.get() != FUNCTION) throw new IllegalStateException("Expected a method.");
+                        methods.add(function());
+                    }
+                    Stmt.Class stmt = new Stmt.Class(name, superclass, methods);
+                    stmt.slot = in.getInt();
+                    stmt.inFrame = in.get() == TRUE_VALUE;
+                    return stmt;
+                }
+                case IF:
+                    return new Stmt.If(expr(), stmt(), stmt());
+                case PRINT:
+                    return new Stmt.Print(expr());
+                case RETURN: {
+                    Stmt.Return stmt = new Stmt.Return(token(), expr());
+                    stmt.tailCall = in.get() == TRUE_VALUE;
+                    return stmt;
+                }
+                case VAR: {
+                    Stmt.Var stmt = new Stmt.Var(token(), expr());
+                    stmt.slot = in.getInt();
+                    stmt.inFrame = in.get() == TRUE_VALUE;
+                    return stmt;
+                }
+                case WHILE:
+                    return new Stmt.While(expr(), stmt());
+                case FOR: {
+                    Stmt.For stmt = new Stmt.For(stmt(), expr(), expr(), stmt());
+                    stmt.slotCount = in.getInt();
+                    return stmt;
+                }
+                default:
+                    throw new IllegalStateException("Bad statement tag " + tag + ".");
+            }
         }
 
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitReturnStmt(this);
+        private Stmt.Function function() {
+            Token name = token();
+            int count = in.getInt();
+            List<Token> params = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                params.add(token());
+            }
+            Stmt.Function stmt = new Stmt.Function(name, params, statements());
+            stmt.slot = in.getInt();
+            stmt.inFrame = in.get() == TRUE_VALUE;
+            stmt.paramSlots = new int[count];
+            stmt.paramInFrame = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                stmt.paramSlots[i] = in.getInt();
+                stmt.paramInFrame[i] = in.get() == TRUE_VALUE;
+            }
+            stmt.thisSlot = in.getInt();
+            stmt.thisInFrame = in.get() == TRUE_VALUE;
+            stmt.slotCount = in.getInt();
+            stmt.frameSize = in.getInt();
+            return stmt;
         }
     }
+}
 
-    static class Var extends Stmt {
-        final Token name;
-        final Expr initializer;
-
-        Var(Token name, Expr initializer) {
-            this.name = name;
-            this.initializer = initializer;
-        }
+// -------------------- TokenType --------------------
+enum TokenType {
+    // Single-character tokens.
+    LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE,
+    COMMA, DOT, MINUS, PLUS, SEMICOLON, SLASH, STAR,
 
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitVarStmt(this);
-        }
-    }
+    // One or two character tokens.
+    BANG, BANG_EQUAL,
+    EQUAL, EQUAL_EQUAL,
+    GREATER, GREATER_EQUAL,
+    LESS, LESS_EQUAL,
 
-    static class While extends Stmt {
-        final Expr condition;
-        final Stmt body;
+    // Literals.
+    IDENTIFIER, STRING, NUMBER,
 
-        While(Expr condition, Stmt body) {
-            this.condition = condition;
-            this.body = body;
-        }
+    // Keywords.
+    AND, CLASS, ELSE, FALSE, FUN, FOR, IF, NIL, OR,
+    PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE,
 
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitWhileStmt(this);
-        }
-    }
+    EOF
 }
 
-// -------------------- Environment --------------------
-class Environment {
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+// -------------------- Token --------------------
+class Token {
+    final TokenType type;
+    final String lexeme;
+    final Object literal;
+    final int line;
+    // The name of the script the token was scanned from, which errors show
+    // next to the line. Null when the program is a single script.
+    final String source;
+    // The interned name, for identifiers, "this" and "super"; null for
+    // other tokens.
+    final Symbol symbol;
+
+    Token(TokenType type, String lexeme, Object literal, int line, String source) {
+        this.type = type;
+        this.lexeme = lexeme;
+        this.literal = literal;
+        this.line = line;
+        this.source = source;
+        this.symbol = isName(type) ? Symbol.of(lexeme) : null;
+    }
 
-    Environment() {
-        enclosing = null;
+    // A name token whose symbol is already interned. Its lexeme is the
+    // symbol's, so every token for the same name shares one string.
+    Token(TokenType type, Symbol symbol, int line, String source) {
+        this.type = type;
+        this.lexeme = symbol.name;
+        this.literal = null;
+        this.line = line;
+        this.source = source;
+        this.symbol = symbol;
     }
-    
 
-    Environment(Environment enclosing) {
-        this.enclosing = enclosing;
+    static boolean isName(TokenType type) {
+        return type == TokenType.IDENTIFIER || type == TokenType.THIS || type == TokenType.SUPER;
     }
 
-    void define(String name, Object value) {
-        values.put(name, value);
+    public String toString() {
+        return type + " " + lexeme + " " + literal;
     }
+}
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
+// An interned name. There is one live Symbol per distinct name, so tables
+// keyed by symbols compare them by identity and hash them by id instead of
+// hashing and comparing strings. Names are interned as they are scanned
+// (see TokenBuffer), and every table the runtimes look names up in is
+// keyed by symbol.
+//
+// The table is shared by every thread, but holds its symbols weakly: a
+// name stays interned only while some program, shape or context still
+// refers to its symbol, so an engine fed generated scripts does not keep
+// every name it has ever seen. A name interned again after its symbol is
+// gone gets a new one, which nothing alive can confuse with the old.
+final class Symbol {
+    // Keyed by the symbol's own name, so an entry goes with its symbol.
+    private static final Map<String, WeakReference<Symbol>> TABLE = new WeakHashMap<>();
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    static final Symbol INIT = of("init");
+    static final Symbol THIS = of("this");
+    static final Symbol SUPER = of("super");
+    static final Symbol CLOCK = of("clock");
+
+    final String name;
+    final int id;
 
-        if (enclosing != null) {
-            return enclosing.get(name);
+    private Symbol(String name) {
+        this.name = name;
+        this.id = NEXT_ID.getAndIncrement();
+    }
+
+    static Symbol of(String name) {
+        synchronized (TABLE) {
+            WeakReference<Symbol> reference = TABLE.get(name);
+            Symbol symbol = reference == null ? null : reference.get();
+            if (symbol == null) {
+                symbol = new Symbol(name);
+                // Removed first so the entry's key is the new symbol's name
+                // rather than a string left over from the cleared one.
+                TABLE.remove(name);
+                TABLE.put(symbol.name, new WeakReference<>(symbol));
+            }
+            return symbol;
         }
+    }
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    @Override
+    public int hashCode() {
+        return id;
     }
 
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
+    @Override
+    public String toString() {
+        return name;
+    }
+}
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
-        }
+class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
+    String print(Stmt stmt) {
+        return stmt.accept(this);
+    }
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    String print(Expr expr) {
+        return expr.accept(this);
     }
     
-    Environment ancestor(int distance) {
-        Environment environment = this;
-        for (int i = 0; i < distance; i++) {
-            environment = environment.enclosing;
+    @Override
+    public String visitBlockStmt(Stmt.Block stmt) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(block ");
+        
+        for (Stmt statement : stmt.statements) {
+            builder.append(print(statement));
+            builder.append(" ");
         }
         
-        return environment;
+        builder.append(")");
+        return builder.toString();
     }
     
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    @Override
+    public String visitExpressionStmt(Stmt.Expression stmt) {
+        return print(stmt.expression);
     }
     
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    @Override
+    public String visitFunctionStmt(Stmt.Function stmt) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(fun " + stmt.name.lexeme + "(");
+        
+        for (int i = 0; i < stmt.params.size(); i++) {
+            if (i > 0) builder.append(" ");
+            builder.append(stmt.params.get(i).lexeme);
+        }
+        
+        builder.append(") ");
+        
+        for (Stmt body : stmt.body) {
+            builder.append(print(body));
+        }
+        
+        builder.append(")");
+        return builder.toString();
+    }
+    
+    @Override
+    public String visitIfStmt(Stmt.If stmt) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(if ");
+        builder.append(print(stmt.condition));
+        builder.append(" ");
+        builder.append(print(stmt.thenBranch));
+        
+        if (stmt.elseBranch != null) {
+            builder.append(" ");
+            builder.append(print(stmt.elseBranch));
+        }
+        
+        builder.append(")");
+        return builder.toString();
+    }
+    
+    @Override
+    public String visitPrintStmt(Stmt.Print stmt) {
+        return parenthesize("print", stmt.expression);
+    }
+    
+    @Override
+    public String visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return "(return)";
+        return "(return " + print(stmt.value) + ")";
+    }
+    
+    @Override
+    public String visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) {
+            return parenthesize("var", new Expr.Variable(stmt.name));
+        }
+        
+        return parenthesize("var", new Expr.Variable(stmt.name), stmt.initializer);
+    }
+    
+    @Override
+    public String visitWhileStmt(Stmt.While stmt) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(while ");
+        builder.append(print(stmt.condition));
+        builder.append(" ");
+        builder.append(print(stmt.body));
+        builder.append(")");
+        return builder.toString();
+    }
+
+    // Printed as the while loop it is equivalent to.
+    @Override
+    public String visitForStmt(Stmt.For stmt) {
+        Stmt body = stmt.body;
+        if (stmt.increment != null) {
+            body = new Stmt.Block(Arrays.asList(body, new Stmt.Expression(stmt.increment)));
+        }
+
+        Expr condition = stmt.condition;
+        if (condition == null) condition = new Expr.Literal(true);
+        body = new Stmt.While(condition, body);
+
+        if (stmt.initializer != null) {
+            body = new Stmt.Block(Arrays.asList(stmt.initializer, body));
+        }
+        return print(body);
+    }
+
+    // Add this method to the AstPrinter class
+    @Override
+    public String visitClassStmt(Stmt.Class stmt) {
+        return "(class " + stmt.name.lexeme + ")";
+    }
+
+    @Override
+    public String visitThisExpr(Expr.This expr) {
+        return "this";
+    }
+    
+    @Override
+    public String visitAssignExpr(Expr.Assign expr) {
+        return parenthesize("=", new Expr.Variable(expr.name), expr.value);
+    }
+    
+    @Override
+    public String visitBinaryExpr(Expr.Binary expr) {
+        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+    }
+    
+    @Override
+    public String visitCallExpr(Expr.Call expr) {
+        StringBuilder builder = new StringBuilder();
+        
+        builder.append("(call ");
+        builder.append(print(expr.callee));
+        
+        for (Expr argument : expr.arguments) {
+            builder.append(" ");
+            builder.append(print(argument));
+        }
+        
+        builder.append(")");
+        return builder.toString();
+    }
+    
+    @Override
+    public String visitGroupingExpr(Expr.Grouping expr) {
+        return parenthesize("group", expr.expression);
+    }
+    
+    @Override
+    public String visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) return "nil";
+        
+        if (expr.value instanceof LoxString) {
+            return expr.value.toString();
+        }
+        
+        return expr.value.toString();
+    }
+    
+    @Override
+    public String visitLogicalExpr(Expr.Logical expr) {
+        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+    }
+    
+    @Override
+    public String visitUnaryExpr(Expr.Unary expr) {
+        return parenthesize(expr.operator.lexeme, expr.right);
+    }
+    
+    @Override
+    public String visitVariableExpr(Expr.Variable expr) {
+        return expr.name.lexeme;
+    }
+
+    @Override
+    public String visitGetExpr(Expr.Get expr) {
+        return parenthesize("get", expr.object) + "." + expr.name.lexeme;
+    }
+
+    @Override
+    public String visitSetExpr(Expr.Set expr) {
+        return parenthesize("set", expr.object) + "." + expr.name.lexeme;
+    }
+
+    @Override
+    public String visitSuperExpr(Expr.Super expr) {
+        return "(super." + expr.method.lexeme + ")";
+    }
+    
+    private String parenthesize(String name, Expr... exprs) {
+        StringBuilder builder = new StringBuilder();
+        
+        builder.append("(").append(name);
+        for (Expr expr : exprs) {
+            builder.append(" ");
+            builder.append(print(expr));
+        }
+        builder.append(")");
+        
+        return builder.toString();
+    }
+}
+
+// -------------------- RuntimeError --------------------
+class RuntimeError extends RuntimeException {
+    final Token token;
+    final int line;
+    // See Token.source.
+    final String source;
+
+    RuntimeError(Token token, String message) {
+        super(message);
+        this.token = token;
+        this.line = token.line;
+        this.source = token.source;
+    }
+
+    // Used by the bytecode VM, which only keeps a line table: the error is
+    // at the instruction at the offset in the chunk.
+    RuntimeError(Chunk chunk, int offset, String message) {
+        super(message);
+        this.token = null;
+        this.line = chunk.lines[offset];
+        this.source = chunk.sourceAt(offset);
+    }
+}
+
+// -------------------- UnexpectedResult --------------------
+// Thrown by a specialized node whose operands turned out not to have the
+// type it produces as a primitive; carries the generically computed value.
+class UnexpectedResult extends RuntimeException {
+    final Object result;
+
+    UnexpectedResult(Object result) {
+        super(null, null, false, false);
+        this.result = result;
+    }
+}
+
+// -------------------- Abstract Syntax Tree Classes --------------------
+abstract class Expr {
+    interface Visitor<R> {
+        R visitAssignExpr(Assign expr);
+        R visitBinaryExpr(Binary expr);
+        R visitCallExpr(Call expr);
+        R visitGetExpr(Get expr);  // Add this
+        R visitGroupingExpr(Grouping expr);
+        R visitLiteralExpr(Literal expr);
+        R visitLogicalExpr(Logical expr);
+        R visitSetExpr(Set expr);  // Add this
+        R visitUnaryExpr(Unary expr);
+        R visitVariableExpr(Variable expr);
+        R visitThisExpr(This expr);
+        R visitSuperExpr(Super expr);
+    }
+
+    abstract <R> R accept(Visitor<R> visitor);
+
+    static class Assign extends Expr {
+        final Token name;
+        final Expr value;
+        int depth = -1;
+        int slot = -1;
+
+        Assign(Token name, Expr value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitAssignExpr(this);
+        }
+    }
+
+    static class Binary extends Expr {
+        enum Specialization { UNINITIALIZED, NUMBER, STRING, GENERIC }
+
+        final Expr left;
+        final Token operator;
+        final Expr right;
+        // Operand types this site has settled on under node rewriting.
+        Specialization specialization = Specialization.UNINITIALIZED;
+
+        Binary(Expr left, Token operator, Expr right) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitBinaryExpr(this);
+        }
+    }
+
+    static class Call extends Expr {
+        final Expr callee;
+        final Token paren;
+        final List<Expr> arguments;
+
+        Call(Expr callee, Token paren, List<Expr> arguments) {
+            this.callee = callee;
+            this.paren = paren;
+            this.arguments = arguments;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitCallExpr(this);
+        }
+    }
+
+    static class Grouping extends Expr {
+        final Expr expression;
+
+        Grouping(Expr expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitGroupingExpr(this);
+        }
+    }
+
+    static class Literal extends Expr {
+        final Object value;
+
+        Literal(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitLiteralExpr(this);
+        }
+    }
+
+    static class Logical extends Expr {
+        final Expr left;
+        final Token operator;
+        final Expr right;
+
+        Logical(Expr left, Token operator, Expr right) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitLogicalExpr(this);
+        }
+    }
+
+    static class Unary extends Expr {
+        final Token operator;
+        final Expr right;
+
+        Unary(Token operator, Expr right) {
+            this.operator = operator;
+            this.right = right;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitUnaryExpr(this);
+        }
+    }
+
+    static class Variable extends Expr {
+        final Token name;
+        // Address assigned by the Resolver: a depth of Resolver.GLOBAL marks
+        // a global, Resolver.FRAME a slot of the running call's frame, and
+        // any other depth the number of environments out.
+        int depth = -1;
+        int slot = -1;
+
+        Variable(Token name) {
+            this.name = name;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitVariableExpr(this);
+        }
+    }
+
+    static class Get extends Expr {
+        final Expr object;
+        final Token name;
+        final PropertyCache cache = new PropertyCache();
+    
+        Get(Expr object, Token name) {
+            this.object = object;
+            this.name = name;
+        }
+    
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitGetExpr(this);
+        }
+    }
+    
+    static class Set extends Expr {
+        final Expr object;
+        final Token name;
+        final Expr value;
+        final PropertyCache cache = new PropertyCache();
+    
+        Set(Expr object, Token name, Expr value) {
+            this.object = object;
+            this.name = name;
+            this.value = value;
+        }
+    
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitSetExpr(this);
+        }
+    }
+
+    static class This extends Expr {
+        final Token keyword;
+        int depth = -1;
+        int slot = -1;
+
+        This(Token keyword) {
+            this.keyword = keyword;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitThisExpr(this);
+        }
+    }
+
+    static class Super extends Expr {
+        final Token keyword;
+        final Token method;
+        int depth = -1;
+        int slot = -1;
+        // Where the method's "this" is, which the superclass method is
+        // called on.
+        int thisDepth = -1;
+        int thisSlot = -1;
+
+        Super(Token keyword, Token method) {
+            this.keyword = keyword;
+            this.method = method;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitSuperExpr(this);
+        }
+    }
+}
+
+abstract class Stmt {
+    interface Visitor<R> {
+        R visitBlockStmt(Block stmt);
+        R visitExpressionStmt(Expression stmt);
+        R visitFunctionStmt(Function stmt);
+        R visitClassStmt(Class stmt);
+        R visitIfStmt(If stmt);
+        R visitPrintStmt(Print stmt);
+        R visitReturnStmt(Return stmt);
+        R visitVarStmt(Var stmt);
+        R visitWhileStmt(While stmt);
+        R visitForStmt(For stmt);
+    }
+
+    abstract <R> R accept(Visitor<R> visitor);
+
+    static class Block extends Stmt {
+        final List<Stmt> statements;
+        // Number of locals the block keeps in its environment: those that
+        // closures capture.
+        int slotCount = 0;
+        // Cleared by the Resolver when the block needs no environment,
+        // because it declares nothing or only frame locals. The statements
+        // then run in the enclosing environment, and the block doesn't count
+        // as a scope when resolving distances.
+        boolean scoped = true;
+
+        Block(List<Stmt> statements) {
+            this.statements = statements;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitBlockStmt(this);
+        }
+    }
+
+    static class Class extends Stmt {
+        final Token name;
+        final Expr.Variable superclass;  // Add this field
+        final List<Stmt.Function> methods;
+        int slot = -1;
+        boolean inFrame = false;
+        // Root shapes of the classes this declaration has created, keyed by
+        // the superclass's root shape; see Shape.root().
+        final Map<Shape, Shape> rootShapes = new ConcurrentHashMap<>();
+
+        Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {  // Update constructor
+            this.name = name;
+            this.superclass = superclass;
+            this.methods = methods;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitClassStmt(this);
+        }
+    }
+
+    static class Expression extends Stmt {
+        final Expr expression;
+
+        Expression(Expr expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitExpressionStmt(this);
+        }
+    }
+
+    static class Function extends Stmt {
+        final Token name;
+        final List<Token> params;
+        final List<Stmt> body;
+        int slot = -1;
+        boolean inFrame = false;
+        // Where each parameter goes: a slot of the call's frame, or of its
+        // environment when a closure captures it. Parameters are declared
+        // first, so a frame slot is always the parameter's own index.
+        int[] paramSlots;
+        boolean[] paramInFrame;
+        // Where a method's "this" goes, the same way; -1 for functions. Its
+        // frame slot follows the parameters.
+        int thisSlot = -1;
+        boolean thisInFrame = false;
+        // Slots of the call's environment, none meaning the body runs in the
+        // closure, and of its frame.
+        int slotCount = 0;
+        int frameSize = 0;
+        // Results of FunctionCompiler, shared by every function object made
+        // from this declaration: one for contexts without --tco and one,
+        // whose self tail calls loop, for contexts with it. Guarded by the
+        // declaration's lock.
+        boolean compileAttempted = false;
+        CompiledFunction compiled;
+        boolean loopingCompileAttempted = false;
+        CompiledFunction compiledLooping;
+
+        Function(Token name, List<Token> params, List<Stmt> body) {
+            this.name = name;
+            this.params = params;
+            this.body = body;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitFunctionStmt(this);
+        }
+    }
+
+    static class If extends Stmt {
+        final Expr condition;
+        final Stmt thenBranch;
+        final Stmt elseBranch;
+
+        If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
+            this.condition = condition;
+            this.thenBranch = thenBranch;
+            this.elseBranch = elseBranch;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitIfStmt(this);
+        }
+    }
+
+    static class Print extends Stmt {
+        final Expr expression;
+
+        Print(Expr expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitPrintStmt(this);
+        }
+    }
+
+    static class Return extends Stmt {
+        final Token keyword;
+        final Expr value;
+        // Set by the Resolver when the value is a call the function can be
+        // replaced by; see Interpreter.enableTailCalls().
+        boolean tailCall = false;
+
+        Return(Token keyword, Expr value) {
+            this.keyword = keyword;
+            this.value = value;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitReturnStmt(this);
+        }
+    }
+
+    static class Var extends Stmt {
+        final Token name;
+        final Expr initializer;
+        int slot = -1;
+        boolean inFrame = false;
+
+        Var(Token name, Expr initializer) {
+            this.name = name;
+            this.initializer = initializer;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitVarStmt(this);
+        }
+    }
+
+    static class While extends Stmt {
+        final Expr condition;
+        final Stmt body;
+
+        While(Expr condition, Stmt body) {
+            this.condition = condition;
+            this.body = body;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitWhileStmt(this);
+        }
+    }
+
+    // Runs like "{ initializer; while (condition) { body; increment; } }",
+    // without the blocks: a variable the initializer declares gets one scope
+    // around the whole loop, and only a body that declares something needs
+    // a scope per iteration. The initializer, condition and increment are
+    // optional.
+    static class For extends Stmt {
+        final Stmt initializer;
+        final Expr condition;
+        final Expr increment;
+        final Stmt body;
+        // Number of locals the initializer declares that closures capture;
+        // the loop only has an environment of its own when there are any.
+        int slotCount = 0;
+
+        For(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+            this.initializer = initializer;
+            this.condition = condition;
+            this.increment = increment;
+            this.body = body;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitForStmt(this);
+        }
+    }
+}
+
+// -------------------- Environment --------------------
+// The global environment is keyed by name. Every other environment is a
+// frame whose variables live in the slots the Resolver assigned them.
+class Environment {
+    final Environment enclosing;
+    private final Map<Symbol, Object> values;
+    private final Object[] slots;
+
+    Environment() {
+        enclosing = null;
+        values = new HashMap<>();
+        slots = null;
+    }
+
+    Environment(Environment enclosing, int size) {
+        this.enclosing = enclosing;
+        this.values = null;
+        this.slots = new Object[size];
+    }
+
+    void define(Symbol name, Object value) {
+        values.put(name, value);
+    }
+
+    void define(int slot, Object value) {
+        slots[slot] = value;
+    }
+
+    // Returns null for an undefined global.
+    Object lookUp(Symbol name) {
+        return values.get(name);
+    }
+
+    Object get(Token name) {
+        if (values.containsKey(name.symbol)) {
+            return values.get(name.symbol);
+        }
+
+        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    }
+
+    void assign(Token name, Object value) {
+        if (values.containsKey(name.symbol)) {
+            values.put(name.symbol, value);
+            return;
+        }
+
+        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    }
+    
+    Environment ancestor(int distance) {
+        Environment environment = this;
+        for (int i = 0; i < distance; i++) {
+            environment = environment.enclosing;
+        }
+        
+        return environment;
+    }
+    
+    Object getAt(int distance, int slot) {
+        return ancestor(distance).slots[slot];
+    }
+    
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
+    }
+}
+
+// -------------------- Scanner --------------------
+// The source is any CharSequence: a String, or a MappedSource whose "chars"
+// are UTF-8 bytes. Everything outside string literals and comments is ASCII,
+// so the scanner never needs to decode.
+class Scanner {
+    private final CharSequence source;
+    // See Token.source.
+    private final String name;
+    private final ErrorReporter errors;
+    private TokenSink tokens;
+    private int start = 0;
+    private int current = 0;
+    private int line = 1;
+
+    Scanner(CharSequence source, ErrorReporter errors) {
+        this(source, null, errors);
+    }
+
+    Scanner(CharSequence source, String name, ErrorReporter errors) {
+        this.source = source;
+        this.name = name;
+        this.errors = errors;
+    }
+
+    TokenBuffer scanTokens() {
+        TokenBuffer buffer = new TokenBuffer(source, name);
+        scanTokens(buffer);
+        return buffer;
+    }
+
+    // Hands each token to the sink as soon as it is scanned.
+    void scanTokens(TokenSink sink) {
+        tokens = sink;
+        while (!isAtEnd()) {
+            // We are at the beginning of the next lexeme.
+            start = current;
+            scanToken();
+        }
+
+        tokens.add(TokenType.EOF, current, 0, line);
+    }
+
+    private void scanToken() {
+        char c = advance();
+        switch (c) {
+            case '(': addToken(TokenType.LEFT_PAREN); break;
+            case ')': addToken(TokenType.RIGHT_PAREN); break;
+            case '{': addToken(TokenType.LEFT_BRACE); break;
+            case '}': addToken(TokenType.RIGHT_BRACE); break;
+            case ',': addToken(TokenType.COMMA); break;
+            case '.': addToken(TokenType.DOT); break;
+            case '-': addToken(TokenType.MINUS); break;
+            case '+': addToken(TokenType.PLUS); break;
+            case ';': addToken(TokenType.SEMICOLON); break;
+            case '*': addToken(TokenType.STAR); break;
+            case '!':
+                addToken(match('=') ? TokenType.BANG_EQUAL : TokenType.BANG);
+                break;
+            case '=':
+                addToken(match('=') ? TokenType.EQUAL_EQUAL : TokenType.EQUAL);
+                break;
+            case '<':
+                addToken(match('=') ? TokenType.LESS_EQUAL : TokenType.LESS);
+                break;
+            case '>':
+                addToken(match('=') ? TokenType.GREATER_EQUAL : TokenType.GREATER);
+                break;
+            case '/':
+                if (match('/')) {
+                    // A comment goes until the end of the line.
+                    while (peek() != '\n' && !isAtEnd()) advance();
+                } else {
+                    addToken(TokenType.SLASH);
+                }
+                break;
+            case ' ':
+            case '\r':
+            case '\t':
+                // Ignore whitespace.
+                break;
+            case '\n':
+                line++;
+                break;
+            case '"': string(); break;
+            default:
+                if (isDigit(c)) {
+                    number();
+                } else if (isAlpha(c)) {
+                    identifier();
+                } else {
+                    unexpectedCharacter(c);
+                }
+                break;
+        }
+    }
+
+    private void identifier() {
+        while (isAlphaNumeric(peek())) advance();
+
+        addToken(identifierType());
+    }
+
+    // Keywords are recognized in place, as clox does, so scanning never
+    // copies an identifier out of the source.
+    private TokenType identifierType() {
+        switch (source.charAt(start)) {
+            case 'a': return keyword(1, "nd", TokenType.AND);
+            case 'c': return keyword(1, "lass", TokenType.CLASS);
+            case 'e': return keyword(1, "lse", TokenType.ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'a': return keyword(2, "lse", TokenType.FALSE);
+                        case 'o': return keyword(2, "r", TokenType.FOR);
+                        case 'u': return keyword(2, "n", TokenType.FUN);
+                    }
+                }
+                break;
+            case 'i': return keyword(1, "f", TokenType.IF);
+            case 'n': return keyword(1, "il", TokenType.NIL);
+            case 'o': return keyword(1, "r", TokenType.OR);
+            case 'p': return keyword(1, "rint", TokenType.PRINT);
+            case 'r': return keyword(1, "eturn", TokenType.RETURN);
+            case 's': return keyword(1, "uper", TokenType.SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'h': return keyword(2, "is", TokenType.THIS);
+                        case 'r': return keyword(2, "ue", TokenType.TRUE);
+                    }
+                }
+                break;
+            case 'v': return keyword(1, "ar", TokenType.VAR);
+            case 'w': return keyword(1, "hile", TokenType.WHILE);
+        }
+        return TokenType.IDENTIFIER;
+    }
+
+    private TokenType keyword(int offset, String rest, TokenType type) {
+        if (current - start != offset + rest.length()) return TokenType.IDENTIFIER;
+        for (int i = 0; i < rest.length(); i++) {
+            if (source.charAt(start + offset + i) != rest.charAt(i)) return TokenType.IDENTIFIER;
+        }
+        return type;
+    }
+
+    private void unexpectedCharacter(char c) {
+        if (source instanceof MappedSource && c >= 0x80) {
+            // Report a multi-byte UTF-8 character once, not once per byte.
+            while (!isAtEnd() && (peek() & 0xC0) == 0x80) advance();
+            errors.error(name, line, "Unexpected character: " + source.subSequence(start, current));
+        } else {
+            errors.error(name, line, "Unexpected character: " + c);
+        }
+    }
+
+    private void number() {
+        while (isDigit(peek())) advance();
+
+        // Look for a fractional part.
+        if (peek() == '.' && isDigit(peekNext())) {
+            // Consume the "."
+            advance();
+
+            while (isDigit(peek())) advance();
+        }
+
+        // The value is parsed when the parser asks for it.
+        addToken(TokenType.NUMBER);
+    }
+
+    private void string() {
+        while (peek() != '"' && !isAtEnd()) {
+            if (peek() == '\n') line++;
+            advance();
+        }
+
+        if (isAtEnd()) {
+            errors.error(name, line, "Unterminated string.");
+            return;
+        }
+
+        // The closing ".
+        advance();
+
+        // The buffer trims the surrounding quotes when asked for the value.
+        addToken(TokenType.STRING);
+    }
+
+    private boolean match(char expected) {
+        if (isAtEnd()) return false;
+        if (source.charAt(current) != expected) return false;
+
+        current++;
+        return true;
+    }
+
+    private char peek() {
+        if (isAtEnd()) return '\0';
+        return source.charAt(current);
+    }
+
+    private char peekNext() {
+        if (current + 1 >= source.length()) return '\0';
+        return source.charAt(current + 1);
+    }
+
+    private boolean isAlpha(char c) {
+        return (c >= 'a' && c <= 'z') ||
+                (c >= 'A' && c <= 'Z') ||
+                c == '_';
+    }
+
+    private boolean isAlphaNumeric(char c) {
+        return isAlpha(c) || isDigit(c);
+    }
+
+    private boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private boolean isAtEnd() {
+        return current >= source.length();
+    }
+
+    private char advance() {
+        return source.charAt(current++);
+    }
+
+    private void addToken(TokenType type) {
+        tokens.add(type, start, current - start, line);
+    }
+}
+
+// -------------------- Token Buffer --------------------
+// Where the scanner puts tokens. A token is its type, its position in the
+// source and its line.
+interface TokenSink {
+    void add(TokenType type, int start, int length, int line);
+}
+
+// The scanner's output, one token per index spread over parallel arrays.
+// Lexemes stay in the source as an offset and length; the strings, literal
+// values and Token objects are only created for the tokens the parser keeps.
+class TokenBuffer implements TokenSink {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final CharSequence source;
+    // The script's name, given to every token; see Token.source.
+    private final String name;
+    private int[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    // The symbol of each name token, interned as it is added.
+    private Symbol[] symbols;
+    private int count = 0;
+    // The symbols this source has named so far, open addressed by the
+    // hash of the name, so a repeated name is found without taking a
+    // substring.
+    private Symbol[] seen = new Symbol[64];
+    private int seenCount = 0;
+
+    TokenBuffer(CharSequence source, String name) {
+        this.source = source;
+        this.name = name;
+        // Guess about one token per eight characters of source, but let
+        // huge sources grow into their arrays.
+        int capacity = Math.min(source.length() / 8 + 16, 1 << 16);
+        types = new int[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        lines = new int[capacity];
+        symbols = new Symbol[capacity];
+    }
+
+    @Override
+    public void add(TokenType type, int start, int length, int line) {
+        if (count == types.length) {
+            int capacity = count * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            symbols = Arrays.copyOf(symbols, capacity);
+        }
+        types[count] = type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        lines[count] = line;
+        if (Token.isName(type)) symbols[count] = intern(start, length);
+        count++;
+    }
+
+    private Symbol intern(int start, int length) {
+        // The same hash String.hashCode() would give the lexeme.
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + source.charAt(start + i);
+        }
+
+        int mask = seen.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            Symbol symbol = seen[i];
+            if (symbol == null) break;
+            if (matches(symbol.name, start, length)) return symbol;
+        }
+
+        Symbol symbol = Symbol.of(lexeme(source, start, length));
+        if (++seenCount * 2 > seen.length) {
+            Symbol[] old = seen;
+            seen = new Symbol[old.length * 2];
+            for (Symbol existing : old) {
+                if (existing != null) insert(existing);
+            }
+        }
+        insert(symbol);
+        return symbol;
+    }
+
+    private void insert(Symbol symbol) {
+        int mask = seen.length - 1;
+        int i = symbol.name.hashCode() & mask;
+        while (seen[i] != null) i = (i + 1) & mask;
+        seen[i] = symbol;
+    }
+
+    private boolean matches(String name, int start, int length) {
+        if (name.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != source.charAt(start + i)) return false;
+        }
+        return true;
+    }
+
+    int size() {
+        return count;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    int line(int index) {
+        return lines[index];
+    }
+
+    String lexeme(int index) {
+        return lexeme(source, starts[index], lengths[index]);
+    }
+
+    Object literal(int index) {
+        return literal(source, type(index), starts[index], lengths[index]);
+    }
+
+    static String lexeme(CharSequence source, int start, int length) {
+        return source.subSequence(start, start + length).toString();
+    }
+
+    // The value of a NUMBER or STRING token, or null for any other.
+    static Object literal(CharSequence source, TokenType type, int start, int length) {
+        switch (type) {
+            case NUMBER:
+                return Double.parseDouble(lexeme(source, start, length));
+            case STRING:
+                // Trim the surrounding quotes.
+                return lexeme(source, start + 1, length - 2);
+            default:
+                return null;
+        }
+    }
+
+    Token token(int index) {
+        if (symbols[index] != null) return new Token(type(index), symbols[index], lines[index], name);
+        return new Token(type(index), lexeme(index), literal(index), lines[index], name);
+    }
+}
+
+// Prints each token as it is scanned, for the tokenize command, so no token
+// is kept once it has been written.
+class TokenPrinter implements TokenSink {
+    private final CharSequence source;
+    private final PrintStream out;
+
+    TokenPrinter(CharSequence source, PrintStream out) {
+        this.source = source;
+        this.out = out;
+    }
+
+    @Override
+    public void add(TokenType type, int start, int length, int line) {
+        Object value = TokenBuffer.literal(source, type, start, length);
+        String literal = "null";
+        if (value != null) {
+            literal = value.toString();
+        }
+        out.println(type + " " + TokenBuffer.lexeme(source, start, length) + " " + literal);
+    }
+}
+
+// -------------------- Source Files --------------------
+// A UTF-8 file mapped into memory, seen as a CharSequence of its bytes.
+// Only the pieces that become strings are decoded, so a script costs its
+// tokens and tree rather than three copies of its text.
+class MappedSource implements CharSequence {
+    private final ByteBuffer bytes;
+    private final int offset;
+    private final int length;
+
+    private MappedSource(ByteBuffer bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    static MappedSource map(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(path + " is too large to map (" + size + " bytes).");
+            }
+            // The mapping stays valid after the channel is closed.
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new MappedSource(bytes, 0, (int) size);
+        }
+    }
+
+    // The mapped bytes, for hashing.
+    ByteBuffer bytes() {
+        ByteBuffer view = bytes.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (bytes.get(offset + index) & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new MappedSource(bytes, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        byte[] text = new byte[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = bytes.get(offset + i);
+        }
+        return new String(text, StandardCharsets.UTF_8);
+    }
+}
+
+// -------------------- Strings --------------------
+// A Lox string. Strings are prefixes of a shared, growable char buffer, and
+// "a + b" writes b's chars right after a's when a still ends where the
+// written part of its buffer does. A string built up by repeated
+// concatenation is then copied once per doubling of its buffer instead of
+// on every step. Written chars never change, so the strings sharing a
+// buffer stay what they were; appending to one that no longer ends its
+// buffer copies it into a new one. Literals get a buffer with no room to
+// spare, so the strings in a shared tree are never appended to in place.
+final class LoxString {
+    private static final class Buffer {
+        static final AtomicIntegerFieldUpdater<Buffer> USED =
+            AtomicIntegerFieldUpdater.newUpdater(Buffer.class, "used");
+
+        final char[] chars;
+        // Length of the written part. Appending claims the chars past it
+        // with a compare-and-set, so two threads never write the same ones.
+        volatile int used;
+
+        Buffer(char[] chars, int used) {
+            this.chars = chars;
+            this.used = used;
+        }
+    }
+
+    private final Buffer buffer;
+    private final int length;
+    // The contents as a String, made the first time they are printed.
+    private String flat;
+    private int hash;
+
+    private LoxString(Buffer buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+    }
+
+    static LoxString of(String text) {
+        LoxString string = new LoxString(new Buffer(text.toCharArray(), text.length()), text.length());
+        string.flat = text;
+        return string;
+    }
+
+    LoxString concat(LoxString other) {
+        if (other.length == 0) return this;
+        if (length == 0) return other;
+
+        int total = length + other.length;
+        Buffer target = buffer;
+        if (total <= target.chars.length && target.used == length &&
+            Buffer.USED.compareAndSet(target, length, total)) {
+            System.arraycopy(other.buffer.chars, 0, target.chars, length, other.length);
+            return new LoxString(target, total);
+        }
+
+        // Leave room for the next append, as a builder would.
+        char[] chars = new char[total > Integer.MAX_VALUE / 2 ? total : Math.max(total * 2, 16)];
+        System.arraycopy(buffer.chars, 0, chars, 0, length);
+        System.arraycopy(other.buffer.chars, 0, chars, length, other.length);
+        return new LoxString(new Buffer(chars, total), total);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) return true;
+        if (!(object instanceof LoxString)) return false;
+
+        LoxString other = (LoxString)object;
+        if (length != other.length) return false;
+        // Two strings as long as each other in one buffer are the same prefix.
+        if (buffer == other.buffer) return true;
+        if (flat != null && other.flat != null) return flat.equals(other.flat);
+
+        char[] a = buffer.chars;
+        char[] b = other.buffer.chars;
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) return false;
+        }
+        return true;
+    }
+
+    // The same hash as the String would have.
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            char[] chars = buffer.chars;
+            for (int i = 0; i < length; i++) {
+                h = 31 * h + chars[i];
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        String text = flat;
+        if (text == null) {
+            text = new String(buffer.chars, 0, length);
+            flat = text;
+        }
+        return text;
+    }
+}
+
+// -------------------- Function Interfaces --------------------
+// Calls with up to four arguments have entry points of their own, so a
+// callee that overrides them takes its arguments without an array.
+interface LoxCallable {
+    Object[] NO_ARGUMENTS = {};
+
+    int arity();
+    Object call(Interpreter interpreter, Object[] arguments);
+
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, NO_ARGUMENTS);
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+        return call(interpreter, new Object[] {a});
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, new Object[] {a, b});
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return call(interpreter, new Object[] {a, b, c});
+    }
+
+    default Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        return call(interpreter, new Object[] {a, b, c, d});
+    }
+}
+
+// A callable whose arguments go straight into the frame of the call: they
+// are staged in the Interpreter's frame stack where that frame will start,
+// and the parameters kept in the frame find them in place. The Interpreter
+// stages arguments as it evaluates them; the entry points here stage the
+// ones they are given.
+abstract class FrameCallable implements LoxCallable {
+    // Makes the call with its arguments staged.
+    abstract Object callStaged(Interpreter interpreter);
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        for (int i = 0; i < arguments.length; i++) {
+            interpreter.stageArgument(i, arguments[i]);
+        }
+        return callStaged(interpreter);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return callStaged(interpreter);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        interpreter.stageArgument(0, a);
+        return callStaged(interpreter);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        interpreter.stageArgument(0, a);
+        interpreter.stageArgument(1, b);
+        return callStaged(interpreter);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        interpreter.stageArgument(0, a);
+        interpreter.stageArgument(1, b);
+        interpreter.stageArgument(2, c);
+        return callStaged(interpreter);
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        interpreter.stageArgument(0, a);
+        interpreter.stageArgument(1, b);
+        interpreter.stageArgument(2, c);
+        interpreter.stageArgument(3, d);
+        return callStaged(interpreter);
+    }
+}
+
+class LoxFunction extends FrameCallable {
+    private final Stmt.Function declaration;
+    private final Environment closure;
+    private final boolean isMethod;
+    private final boolean isInitializer;
+    // The instance a bound method is called on, or null.
+    private final LoxInstance receiver;
+    // Calls counted towards FunctionCompiler.THRESHOLD, or -1 once the
+    // function has been offered to the compiler.
+    private int calls = 0;
+    private CompiledFunction compiled;
+
+    LoxFunction(Stmt.Function declaration, Environment closure, boolean isMethod) {
+        this(declaration, closure, isMethod, false);
+    }
+
+    LoxFunction(Stmt.Function declaration, Environment closure, boolean isMethod, boolean isInitializer) {
+        this(declaration, closure, isMethod, isInitializer, null);
+    }
+
+    private LoxFunction(Stmt.Function declaration, Environment closure, boolean isMethod,
+                        boolean isInitializer, LoxInstance receiver) {
+        this.declaration = declaration;
+        this.closure = closure;
+        this.isMethod = isMethod;
+        this.isInitializer = isInitializer;
+        this.receiver = receiver;
+    }
+    
+    // Only needed when a method is used as a value; calling it straight
+    // off the instance goes through callMethod().
+    LoxFunction bind(LoxInstance instance) {
+        return new LoxFunction(declaration, closure, isMethod, isInitializer, instance);
+    }
+    
+    @Override
+    public int arity() {
+        return declaration.params.size();
+    }
+    
+    @Override
+    Object callStaged(Interpreter interpreter) {
+        Object result = callCompiled(interpreter);
+        if (result != null) return result;
+        return execute(interpreter, receiver);
+    }
+
+    // Runs the compiled body, if there is one, and otherwise counts the
+    // call towards compiling it. Returns null when the call has to be made
+    // in the tree walker.
+    private Object callCompiled(Interpreter interpreter) {
+        if (compiled != null) {
+            Object result = compiled.call(this, closure, interpreter);
+            if (result != null) return result;
+            // A guard failed; the function stays in the tree walker for good.
+            compiled = null;
+        } else if (calls >= 0 && !isMethod && interpreter.compilesHotFunctions() &&
+                   ++calls == FunctionCompiler.THRESHOLD) {
+            calls = -1;
+            compiled = FunctionCompiler.compile(declaration, interpreter.runsTailCalls());
+        }
+        return null;
+    }
+
+    // Same as bind(receiver).callStaged(...), without allocating the bound
+    // function.
+    Object callMethod(Interpreter interpreter, LoxInstance receiver) {
+        return execute(interpreter, receiver);
+    }
+
+    // Runs the body in the tree walker, on the receiver if it is a method.
+    // When it returns a tail call, the call is made here in turn, so a
+    // chain of tail calls takes one Java frame however long it gets.
+    private Object execute(Interpreter interpreter, LoxInstance receiver) {
+        LoxFunction function = this;
+        for (;;) {
+            if (receiver != null) {
+                interpreter.stageArgument(function.declaration.params.size(), receiver);
+            }
+            Interpreter.Completion completion =
+                interpreter.executeCall(function.declaration, function.closure);
+
+            if (function.isInitializer) return receiver;
+            if (completion != Interpreter.Completion.RETURN) return null;
+
+            Interpreter.TailCall call = interpreter.takeTailCall();
+            if (call == null) return interpreter.returnValue();
+
+            function = call.function;
+            for (int i = 0; i < call.arguments.length; i++) {
+                interpreter.stageArgument(i, call.arguments[i]);
+            }
+            receiver = call.receiver != null ? call.receiver : function.receiver;
+            if (receiver == null) {
+                Object result = function.callCompiled(interpreter);
+                if (result != null) return result;
+            }
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return "<fn " + declaration.name.lexeme + ">";
+    }
+}
+
+class ClockFunction implements LoxCallable {
+    @Override
+    public int arity() {
+        return 0;
+    }
+    
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return (double)System.currentTimeMillis() / 1000.0;
+    }
+    
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
+
+class LoxClass extends FrameCallable {
+    final String name;
+    final LoxClass superclass;  // Add this field
+    // Every instance starts out with this shape, which also numbers the
+    // methods, inherited ones included.
+    final Shape rootShape;
+    private final LoxFunction[] methods;
+    // The "init" method, inherited or not, or null.
+    private final LoxFunction initializer;
+
+    LoxClass(String name, LoxClass superclass, Shape rootShape, Map<Symbol, LoxFunction> methods) {  // Update constructor
+        this.name = name;
+        this.superclass = superclass;
+        this.rootShape = rootShape;
+
+        // Start from the superclass's table; overrides replace its entries.
+        this.methods = new LoxFunction[rootShape.methodCount()];
+        if (superclass != null) {
+            System.arraycopy(superclass.methods, 0, this.methods, 0, superclass.methods.length);
+        }
+        for (Map.Entry<Symbol, LoxFunction> method : methods.entrySet()) {
+            this.methods[rootShape.methodIndexOf(method.getKey())] = method.getValue();
+        }
+        this.initializer = findMethod(Symbol.INIT);
+    }
+
+    LoxFunction findMethod(Symbol name) {
+        int index = rootShape.methodIndexOf(name);
+        return index < 0 ? null : methods[index];
+    }
+
+    LoxFunction methodAt(int index) {
+        return methods[index];
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    @Override
+    public int arity() {
+        if (initializer == null) return 0;
+        return initializer.arity();
+    }
+
+    @Override
+    Object callStaged(Interpreter interpreter) {
+        LoxInstance instance = new LoxInstance(this);
+        
+        // Call the initializer if there is one
+        if (initializer != null) {
+            initializer.callMethod(interpreter, instance);
+        }
+        
+        return instance;
+    }
+}
+
+// -------------------- Shape --------------------
+// A hidden class: the field layout shared by every instance of a class that
+// added the same fields in the same order. Instances keep only an Object[]
+// of values, and adding a field moves an instance along a cached transition.
+//
+// Shapes carry no per-run state, and the roots for a class declaration are
+// kept on its AST node, so contexts running the same program on different
+// threads share them and their inline caches stay monomorphic.
+class Shape {
+    private static final Shape NO_SUPERCLASS = new Shape();
+    // Shapes with at most this many fields are searched by walking the
+    // chain; bigger ones build a map.
+    private static final int LINEAR_SEARCH_LIMIT = 8;
+
+    // A shape records only the field it added, at index size - 1, and the
+    // shape it was added to. Null on a root shape.
+    private final Shape parent;
+    private final Symbol name;
+    // Index of every field, built the first time a big shape is searched.
+    private volatile Map<Symbol, Integer> indexes;
+    private final Map<Symbol, Shape> transitions = new ConcurrentHashMap<>();
+    private final Shape root;
+    final int size;
+    // Field count the class's instances have grown to, used to size their
+    // field arrays up front. Only meaningful on a root shape.
+    int expectedSize = 0;
+    // Slot of each method in the method table of the classes whose instances
+    // start with this shape. Only set on a root shape.
+    private final Map<Symbol, Integer> methodIndexes;
+
+    Shape() {
+        this(new HashMap<Symbol, Integer>());
+    }
+
+    private Shape(Map<Symbol, Integer> methodIndexes) {
+        this.parent = null;
+        this.name = null;
+        this.root = this;
+        this.size = 0;
+        this.methodIndexes = methodIndexes;
+    }
+
+    private Shape(Shape parent, Symbol name) {
+        this.parent = parent;
+        this.name = name;
+        this.root = parent.root;
+        this.size = parent.size + 1;
+        this.methodIndexes = null;
+    }
+
+    // Returns the root shape for instances of the class a declaration
+    // creates on top of a superclass with the given root, or of no
+    // superclass when it is null.
+    static Shape root(Stmt.Class declaration, Shape superclassRoot) {
+        Shape key = superclassRoot == null ? NO_SUPERCLASS : superclassRoot;
+        Shape root = declaration.rootShapes.get(key);
+        if (root != null) return root;
+
+        Map<Symbol, Integer> methodIndexes = new HashMap<>(key.methodIndexes);
+        for (Stmt.Function method : declaration.methods) {
+            methodIndexes.putIfAbsent(method.name.symbol, methodIndexes.size());
+        }
+
+        Shape created = new Shape(methodIndexes);
+        root = declaration.rootShapes.putIfAbsent(key, created);
+        return root == null ? created : root;
+    }
+
+    int methodCount() {
+        return root.methodIndexes.size();
+    }
+
+    // Returns the method's slot, or -1 if the class has no such method.
+    int methodIndexOf(Symbol name) {
+        Integer index = root.methodIndexes.get(name);
+        return index == null ? -1 : index;
+    }
+
+    // Returns the field's index, or -1 if instances of this shape lack it.
+    int indexOf(Symbol name) {
+        if (size <= LINEAR_SEARCH_LIMIT) {
+            for (Shape shape = this; shape.parent != null; shape = shape.parent) {
+                if (shape.name == name) return shape.size - 1;
+            }
+            return -1;
+        }
+
+        Map<Symbol, Integer> map = indexes;
+        if (map == null) {
+            map = new HashMap<>();
+            for (Shape shape = this; shape.parent != null; shape = shape.parent) {
+                map.put(shape.name, shape.size - 1);
+            }
+            indexes = map;
+        }
+        Integer index = map.get(name);
+        return index == null ? -1 : index;
+    }
+
+    // The length to grow a field array holding the given number of fields
+    // to: doubled, so filling in fields one at a time copies the array a
+    // logarithmic number of times.
+    static int grownLength(int length, int needed) {
+        return Math.max(needed, Math.max(4, length * 2));
+    }
+
+    Shape withField(Symbol name) {
+        Shape next = transitions.get(name);
+        if (next == null) {
+            Shape created = new Shape(this, name);
+            next = transitions.putIfAbsent(name, created);
+            if (next == null) next = created;
+            if (next.size > root.expectedSize) root.expectedSize = next.size;
+        }
+        return next;
+    }
+}
+
+// -------------------- Inline Caches --------------------
+// Remembers how a Get or Set site resolved its property for the receiver
+// shapes it has seen. A shape's root also fixes the layout of the class's
+// method table, so it pins down which slot a method read finds. Sites that
+// see too many shapes go megamorphic and stop caching.
+class PropertyCache {
+    static final int POLYMORPHIC_LIMIT = 4;
+
+    static class Entry {
+        final Shape shape;
+        // Field index, or -1 when the property is a method.
+        final int index;
+        // Slot in the method table of the receiver's class when index is -1.
+        final int method;
+        // Shape after a write; differs from 'shape' when it adds the field.
+        final Shape next;
+
+        Entry(Shape shape, int index, int method, Shape next) {
+            this.shape = shape;
+            this.index = index;
+            this.method = method;
+            this.next = next;
+        }
+    }
+
+    private static final Entry[] EMPTY = new Entry[0];
+
+    // Replaced wholesale on update so a resolved tree can be shared between
+    // threads; a racing reader at worst takes the slow path.
+    private Entry[] entries = EMPTY;
+    private boolean megamorphic = false;
+
+    Entry lookUp(Shape shape) {
+        Entry[] entries = this.entries;
+        for (int i = 0; i < entries.length; i++) {
+            Entry entry = entries[i];
+            if (entry != null && entry.shape == shape) return entry;
+        }
+        return null;
+    }
+
+    void add(Entry entry) {
+        if (megamorphic) return;
+
+        if (entries.length == POLYMORPHIC_LIMIT) {
+            megamorphic = true;
+            entries = EMPTY;
+            return;
+        }
+
+        Entry[] grown = Arrays.copyOf(entries, entries.length + 1);
+        grown[entries.length] = entry;
+        entries = grown;
+    }
+}
+
+class LoxInstance {
+    private final LoxClass klass;
+    private Shape shape;
+    private Object[] fields;
+
+    LoxInstance(LoxClass klass) {
+        this.klass = klass;
+        this.shape = klass.rootShape;
+        this.fields = new Object[klass.rootShape.expectedSize];
+    }
+
+    Object get(Token name, PropertyCache cache) {
+        PropertyCache.Entry entry = lookUp(name, cache);
+        if (entry.index < 0) return klass.methodAt(entry.method).bind(this);
+        return fields[entry.index];
+    }
+
+    // Resolves a property read through the site's cache. A field shadows a
+    // method of the same name, as it does without the cache.
+    PropertyCache.Entry lookUp(Token name, PropertyCache cache) {
+        PropertyCache.Entry entry = cache.lookUp(shape);
+        if (entry != null) return entry;
+
+        int index = shape.indexOf(name.symbol);
+        int method = -1;
+        if (index < 0) {
+            method = shape.methodIndexOf(name.symbol);
+            if (method < 0) {
+                throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+            }
+        }
+
+        entry = new PropertyCache.Entry(shape, index, method, shape);
+        cache.add(entry);
+        return entry;
+    }
+
+    Object getField(int index) {
+        return fields[index];
+    }
+
+    LoxFunction getMethod(int method) {
+        return klass.methodAt(method);
+    }
+    
+    void set(Token name, Object value, PropertyCache cache) {
+        PropertyCache.Entry entry = cache.lookUp(shape);
+        if (entry == null) {
+            int index = shape.indexOf(name.symbol);
+            Shape next = shape;
+            if (index < 0) {
+                next = shape.withField(name.symbol);
+                index = next.size - 1;
+            }
+
+            entry = new PropertyCache.Entry(shape, index, -1, next);
+            cache.add(entry);
+        }
+
+        if (entry.next != shape) {
+            shape = entry.next;
+            if (entry.index == fields.length) {
+                fields = Arrays.copyOf(fields, Shape.grownLength(fields.length, shape.size));
+            }
+        }
+
+        fields[entry.index] = value;
+    }
+
+    @Override
+    public String toString() {
+        return klass.name + " instance";
+    }
+}
+
+// -------------------- Parser --------------------
+class Parser {
+    private static class ParseError extends RuntimeException {}
+
+    private final TokenBuffer tokens;
+    private final ErrorReporter errors;
+    private int current = 0;
+    private boolean specialMode;
+
+    Parser(TokenBuffer tokens, ErrorReporter errors) {
+        this(tokens, false, errors);
+    }
+    
+    Parser(TokenBuffer tokens, boolean specialMode, ErrorReporter errors) {
+        this.tokens = tokens;
+        this.specialMode = specialMode;
+        this.errors = errors;
+    }
+
+    List<Stmt> parse() {
+        List<Stmt> statements = new ArrayList<>();
+        while (!isAtEnd()) {
+            statements.add(declaration());
+        }
+
+        return statements;
+    }
+
+    private Expr expression() {
+        return assignment();
+    }
+
+    private Stmt declaration() {
+        try {
+            if (match(TokenType.CLASS)) return classDeclaration();
+            if (match(TokenType.FUN)) return function("function");
+            if (match(TokenType.VAR)) return varDeclaration();
+
+            return statement();
+        } catch (ParseError error) {
+            synchronize();
+            return null;
+        }
+    }
+
+    private Stmt classDeclaration() {
+        Token name = consume(TokenType.IDENTIFIER, "Expect class name.");
+        
+        Expr.Variable superclass = null;
+        if (match(TokenType.LESS)) {
+            consume(TokenType.IDENTIFIER, "Expect superclass name.");
+            superclass = new Expr.Variable(previous());
+        }
+        
+        consume(TokenType.LEFT_BRACE, "Expect '{' before class body.");
+        
+        List<Stmt.Function> methods = new ArrayList<>();
+        while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
+            methods.add(function("method"));
+        }
+        
+        consume(TokenType.RIGHT_BRACE, "Expect '}' after class body.");
+        
+        return new Stmt.Class(name, superclass, methods);
+    }
+
+    // Update the function method in Parser to handle methods
+    private Stmt.Function function(String kind) {
+        Token name = consume(TokenType.IDENTIFIER, "Expect " + kind + " name.");
+        
+        consume(TokenType.LEFT_PAREN, "Expect '(' after " + kind + " name.");
+        
+        List<Token> parameters = new ArrayList<>();
+        if (!check(TokenType.RIGHT_PAREN)) {
+            do {
+                if (parameters.size() >= 255) {
+                    error(peek(), "Can't have more than 255 parameters.");
+                }
+                
+                parameters.add(consume(TokenType.IDENTIFIER, "Expect parameter name."));
+            } while (match(TokenType.COMMA));
+        }
+        
+        consume(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
+        
+        consume(TokenType.LEFT_BRACE, "Expect '{' before " + kind + " body.");
+        List<Stmt> body = block();
+        
+        return new Stmt.Function(name, parameters, body);
+    }
+
+    private Stmt varDeclaration() {
+        Token name = consume(TokenType.IDENTIFIER, "Expect variable name.");
+
+        Expr initializer = null;
+        if (match(TokenType.EQUAL)) {
+            initializer = expression();
+        }
+
+        consume(TokenType.SEMICOLON, "Expect ';' after variable declaration.");
+        return new Stmt.Var(name, initializer);
+    }
+
+    private Stmt statement() {
+        if (match(TokenType.FOR)) return forStatement();
+        if (match(TokenType.IF)) return ifStatement();
+        if (match(TokenType.PRINT)) return printStatement();
+        if (match(TokenType.RETURN)) return returnStatement();
+        if (match(TokenType.WHILE)) return whileStatement();
+        if (match(TokenType.LEFT_BRACE)) return new Stmt.Block(block());
+
+        return expressionStatement();
+    }
+
+    private Stmt returnStatement() {
+        Token keyword = previous();
+        Expr value = null;
+        if (!check(TokenType.SEMICOLON)) {
+            value = expression();
+        }
+        
+        consume(TokenType.SEMICOLON, "Expect ';' after return value.");
+        return new Stmt.Return(keyword, value);
+    }
+
+    private Stmt forStatement() {
+        consume(TokenType.LEFT_PAREN, "Expect '(' after 'for'.");
+
+        Stmt initializer;
+        if (match(TokenType.SEMICOLON)) {
+            initializer = null;
+        } else if (match(TokenType.VAR)) {
+            initializer = varDeclaration();
+        } else {
+            initializer = expressionStatement();
+        }
+
+        Expr condition = null;
+        if (!check(TokenType.SEMICOLON)) {
+            condition = expression();
+        }
+        consume(TokenType.SEMICOLON, "Expect ';' after loop condition.");
+
+        Expr increment = null;
+        if (!check(TokenType.RIGHT_PAREN)) {
+            increment = expression();
+        }
+        consume(TokenType.RIGHT_PAREN, "Expect ')' after for clauses.");
+
+        Stmt body = statement();
+
+        return new Stmt.For(initializer, condition, increment, body);
+    }
+
+    private Stmt whileStatement() {
+        consume(TokenType.LEFT_PAREN, "Expect '(' after 'while'.");
+        Expr condition = expression();
+        consume(TokenType.RIGHT_PAREN, "Expect ')' after condition.");
+        Stmt body = statement();
+
+        return new Stmt.While(condition, body);
+    }
+
+    private Stmt ifStatement() {
+        consume(TokenType.LEFT_PAREN, "Expect '(' after 'if'.");
+        Expr condition = expression();
+        consume(TokenType.RIGHT_PAREN, "Expect ')' after if condition.");
+
+        Stmt thenBranch = statement();
+        Stmt elseBranch = null;
+        if (match(TokenType.ELSE)) {
+            elseBranch = statement();
+        }
+
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    private List<Stmt> block() {
+        List<Stmt> statements = new ArrayList<>();
+
+        while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
+            statements.add(declaration());
+        }
+
+        consume(TokenType.RIGHT_BRACE, "Expect '}' after block.");
+        return statements;
+    }
+
+    private Stmt printStatement() {
+        Expr value = expression();
+        consume(TokenType.SEMICOLON, "Expect ';' after value.");
+        return new Stmt.Print(value);
+    }
+
+    private Stmt expressionStatement() {
+        Expr expr = expression();
+        
+        if (specialMode && isAtEnd()) {
+            // No semicolon needed at EOF in special modes
+        } else {
+            consume(TokenType.SEMICOLON, "Expect ';' after expression.");
+        }
+        
+        return new Stmt.Expression(expr);
+    }
+
+    private Expr assignment() {
+        Expr expr = or();
+    
+        if (match(TokenType.EQUAL)) {
+            Token equals = previous();
+            Expr value = assignment();
+    
+            if (expr instanceof Expr.Variable) {
+                Token name = ((Expr.Variable)expr).name;
+                return new Expr.Assign(name, value);
+            } else if (expr instanceof Expr.Get) {
+                Expr.Get get = (Expr.Get)expr;
+                return new Expr.Set(get.object, get.name, value);
+            }
+    
+            error(equals, "Invalid assignment target.");
+        }
+    
+        return expr;
+    }
+
+    private Expr or() {
+        Expr expr = and();
+
+        while (match(TokenType.OR)) {
+            Token operator = previous();
+            Expr right = and();
+            expr = new Expr.Logical(expr, operator, right);
+        }
+
+        return expr;
+    }
+
+    private Expr and() {
+        Expr expr = equality();
+
+        while (match(TokenType.AND)) {
+            Token operator = previous();
+            Expr right = equality();
+            expr = new Expr.Logical(expr, operator, right);
+        }
+
+        return expr;
+    }
+
+    private Expr equality() {
+        Expr expr = comparison();
+
+        while (match(TokenType.BANG_EQUAL, TokenType.EQUAL_EQUAL)) {
+            Token operator = previous();
+            Expr right = comparison();
+            expr = new Expr.Binary(expr, operator, right);
+        }
+
+        return expr;
+    }
+
+    private Expr comparison() {
+        Expr expr = term();
+
+        while (match(TokenType.GREATER, TokenType.GREATER_EQUAL, TokenType.LESS, TokenType.LESS_EQUAL)) {
+            Token operator = previous();
+            Expr right = term();
+            expr = new Expr.Binary(expr, operator, right);
+        }
+
+        return expr;
+    }
+
+    private Expr term() {
+        Expr expr = factor();
+
+        while (match(TokenType.MINUS, TokenType.PLUS)) {
+            Token operator = previous();
+            Expr right = factor();
+            expr = new Expr.Binary(expr, operator, right);
+        }
+
+        return expr;
+    }
+
+    private Expr factor() {
+        Expr expr = unary();
+
+        while (match(TokenType.SLASH, TokenType.STAR)) {
+            Token operator = previous();
+            Expr right = unary();
+            expr = new Expr.Binary(expr, operator, right);
+        }
+
+        return expr;
+    }
+
+    private Expr unary() {
+        if (match(TokenType.BANG, TokenType.MINUS)) {
+            Token operator = previous();
+            Expr right = unary();
+            return new Expr.Unary(operator, right);
+        }
+
+        return call();
+    }
+
+    private Expr call() {
+        Expr expr = primary();
+    
+        while (true) { 
+            if (match(TokenType.LEFT_PAREN)) {
+                expr = finishCall(expr);
+            } else if (match(TokenType.DOT)) {
+                Token name = consume(TokenType.IDENTIFIER, "Expect property name after '.'.");
+                expr = new Expr.Get(expr, name);
+            } else {
+                break;
+            }
+        }
+    
+        return expr;
+    }
+
+    private Expr finishCall(Expr callee) {
+        List<Expr> arguments = new ArrayList<>();
+        if (!check(TokenType.RIGHT_PAREN)) {
+            do {
+                if (arguments.size() >= 255) {
+                    error(peek(), "Can't have more than 255 arguments.");
+                }
+                arguments.add(expression());
+            } while (match(TokenType.COMMA));
+        }
+
+        Token paren = consume(TokenType.RIGHT_PAREN, "Expect ')' after arguments.");
+
+        return new Expr.Call(callee, paren, arguments);
+    }
+
+    private Expr primary() {
+        if (match(TokenType.FALSE)) return new Expr.Literal(false);
+        if (match(TokenType.TRUE)) return new Expr.Literal(true);
+        if (match(TokenType.NIL)) return new Expr.Literal(null);
+        if (match(TokenType.THIS)) return new Expr.This(previous());
+
+        if (match(TokenType.SUPER)) {
+            Token keyword = previous();
+            consume(TokenType.DOT, "Expect '.' after 'super'.");
+            Token method = consume(TokenType.IDENTIFIER, "Expect superclass method name.");
+            return new Expr.Super(keyword, method);
+        }
+
+        if (match(TokenType.NUMBER)) {
+            return new Expr.Literal(tokens.literal(current - 1));
+        }
+
+        if (match(TokenType.STRING)) {
+            return new Expr.Literal(LoxString.of((String)tokens.literal(current - 1)));
+        }
+
+        if (match(TokenType.IDENTIFIER)) {
+            return new Expr.Variable(previous());
+        }
+
+        if (match(TokenType.LEFT_PAREN)) {
+            Expr expr = expression();
+            consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
+            return new Expr.Grouping(expr);
+        }
+
+        throw error(peek(), "Expect expression.");
+    }
+
+    // Fixed arities rather than varargs, so matching allocates nothing.
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
+        }
+
+        return false;
+    }
+
+    private boolean match(TokenType first, TokenType second) {
+        return match(first) || match(second);
+    }
+
+    private boolean match(TokenType first, TokenType second, TokenType third, TokenType fourth) {
+        return match(first) || match(second) || match(third) || match(fourth);
+    }
+
+    private Token consume(TokenType type, String message) {
+        if (check(type)) {
+            advance();
+            return previous();
+        }
+
+        throw error(peek(), message);
+    }
+
+    private boolean check(TokenType type) {
+        if (isAtEnd()) return false;
+        return tokens.type(current) == type;
+    }
+
+    private void advance() {
+        if (!isAtEnd()) current++;
+    }
+
+    private boolean isAtEnd() {
+        return tokens.type(current) == TokenType.EOF;
+    }
+
+    // peek() and previous() build a Token; call them only for tokens that
+    // end up in the tree or in an error message.
+    private Token peek() {
+        return tokens.token(current);
+    }
+
+    private Token previous() {
+        return tokens.token(current - 1);
+    }
+
+    private ParseError error(Token token, String message) {
+        errors.error(token, message);
+        return new ParseError();
+    }
+
+    private void synchronize() {
+        advance();
+
+        while (!isAtEnd()) {
+            if (tokens.type(current - 1) == TokenType.SEMICOLON) return;
+
+            switch (tokens.type(current)) {
+                case CLASS:
+                case FUN:
+                case VAR:
+                case FOR:
+                case IF:
+                case WHILE:
+                case PRINT:
+                case RETURN:
+                    return;
+            }
+
+            advance();
+        }
+    }
+}
+
+// Besides checking the rules the grammar can't, the Resolver decides where
+// each local lives. A local no nested function refers to stays in a slot of
+// the frame of the call that declares it, which the Interpreter reuses from
+// call to call. Only captured locals go to an Environment, which closures
+// can keep alive; a scope without any creates no environment at all. Which
+// locals are captured is only known at the end of their scope, so the
+// addresses of a scope's locals are filled in then.
+class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // Depths of references that aren't environment distances.
+    static final int GLOBAL = -1;
+    static final int FRAME = -2;
+
+    private final ErrorReporter errors;
+    // The innermost scope, null at the top level.
+    private Scope scope = null;
+    // The frame of the function being resolved, or of the top-level code.
+    private Frame frame = new Frame();
+    private final Frame script = frame;
+    private FunctionType currentFunction = FunctionType.NONE;
+    private ClassType currentClass = ClassType.NONE;
+
+    enum FunctionType {
+        NONE,
+        FUNCTION,
+        METHOD,
+        INITIALIZER
+    }
+
+    enum ClassType {
+        NONE,
+        CLASS,
+        SUBCLASS
+    }
+
+    // The slots of one call. A scope's slots are free again once it ends,
+    // so the scopes that follow it reuse them.
+    private static class Frame {
+        int next = 0;
+        int size = 0;
+    }
+
+    private static class Scope {
+        final Scope enclosing;
+        final Frame frame;
+        final int frameStart;
+        final Map<Symbol, Local> locals = new HashMap<>();
+        final List<Local> declared = new ArrayList<>();
+        // Known once the scope ends.
+        int slotCount = 0;
+
+        Scope(Scope enclosing, Frame frame) {
+            this.enclosing = enclosing;
+            this.frame = frame;
+            this.frameStart = frame.next;
+        }
+
+        // Whether the scope creates an environment at runtime.
+        boolean needsEnvironment() {
+            return slotCount > 0;
+        }
+    }
+
+    private static class Local {
+        final Scope scope;
+        // Reserved when declared, in case nothing captures the local.
+        final int frameSlot;
+        boolean defined = false;
+        boolean captured = false;
+        // Slot in the scope's environment, if captured.
+        int slot = -1;
+        // The declaration and references, given the local's address when
+        // its scope ends.
+        final List<Use> uses = new ArrayList<>();
+
+        Local(Scope scope, int frameSlot) {
+            this.scope = scope;
+            this.frameSlot = frameSlot;
+        }
+    }
+
+    // Receives a depth as described on Expr.Variable, and a slot.
+    private interface Address {
+        void set(int depth, int slot);
+    }
+
+    private static class Use {
+        final Scope from;
+        final Address address;
+
+        Use(Scope from, Address address) {
+            this.from = from;
+            this.address = address;
+        }
+    }
+
+    Resolver(ErrorReporter errors) {
+        this.errors = errors;
+    }
+
+    // Slots the top-level code needs in its frame, for the blocks it runs.
+    int frameSize() {
+        return script.size;
+    }
+
+    void resolve(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            resolve(statement);
+        }
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (declaresNothing(stmt.statements)) {
+            stmt.scoped = false;
+            resolve(stmt.statements);
+            return null;
+        }
+
+        beginScope();
+        resolve(stmt.statements);
+        stmt.slotCount = endScope();
+        stmt.scoped = stmt.slotCount > 0;
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.name, (depth, slot) -> {
+            stmt.slot = slot;
+            stmt.inFrame = depth == FRAME;
+        });
+        define(stmt.name);
+
+        resolveFunction(stmt, FunctionType.FUNCTION);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.thenBranch);
+        if (stmt.elseBranch != null) resolve(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (currentFunction == FunctionType.NONE) {
+            errors.error(stmt.keyword, "Can't return from top-level code.");
+        }
+        
+        if (currentFunction == FunctionType.INITIALIZER) {
+            if (stmt.value != null) {
+                errors.error(stmt.keyword, "Can't return a value from an initializer.");
+            }
+        }
+
+        if (stmt.value != null) {
+            resolve(stmt.value);
+        }
+
+        // Nothing runs in a function after its return, so the call can
+        // replace it. Initializers have no value to return.
+        stmt.tailCall = stmt.value instanceof Expr.Call &&
+            (currentFunction == FunctionType.FUNCTION || currentFunction == FunctionType.METHOD);
+        return null;
+    }
+
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        declare(stmt.name, (depth, slot) -> {
+            stmt.slot = slot;
+            stmt.inFrame = depth == FRAME;
+        });
+        if (stmt.initializer != null) {
+            resolve(stmt.initializer);
+        }
+        define(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        boolean scoped = stmt.initializer instanceof Stmt.Var;
+        if (scoped) beginScope();
+
+        if (stmt.initializer != null) resolve(stmt.initializer);
+        if (stmt.condition != null) resolve(stmt.condition);
+        resolve(stmt.body);
+        if (stmt.increment != null) resolve(stmt.increment);
+
+        if (scoped) stmt.slotCount = endScope();
+        return null;
+    }
+
+    // Whether the statements could run in the enclosing scope, because
+    // none of them declares a name.
+    static boolean declaresNothing(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Var || statement instanceof Stmt.Function ||
+                statement instanceof Stmt.Class) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        ClassType enclosingClass = currentClass;
+        currentClass = ClassType.CLASS;
+
+        declare(stmt.name, (depth, slot) -> {
+            stmt.slot = slot;
+            stmt.inFrame = depth == FRAME;
+        });
+        define(stmt.name);
+        
+        if (stmt.superclass != null) {
+            if (stmt.name.symbol == stmt.superclass.name.symbol) {
+                errors.error(stmt.superclass.name, 
+                    "A class can't inherit from itself.");
+            }
+            
+            currentClass = ClassType.SUBCLASS;
+            resolve(stmt.superclass);
+        }
+        
+        if (stmt.superclass != null) {
+            beginScope();
+            defineSynthetic(Symbol.SUPER);
+        }
+
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType declaration = FunctionType.METHOD;
+            if (method.name.symbol == Symbol.INIT) {
+                declaration = FunctionType.INITIALIZER;
+            }
+            resolveFunction(method, declaration);
+        }
+        
+        if (stmt.superclass != null) {
+            endScope();
+        }
+        
+        currentClass = enclosingClass;
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        if (currentClass == ClassType.NONE) {
+            errors.error(expr.keyword, "Can't use 'this' outside of a class.");
+            return null;
+        }
+        
+        resolveLocal(expr.keyword, (depth, slot) -> {
+            expr.depth = depth;
+            expr.slot = slot;
+        });
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        resolve(expr.value);
+        resolveLocal(expr.name, (depth, slot) -> {
+            expr.depth = depth;
+            expr.slot = slot;
+        });
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        resolve(expr.callee);
+
+        for (Expr argument : expr.arguments) {
+            resolve(argument);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (scope != null &&
+            scope.locals.containsKey(expr.name.symbol) &&
+            !scope.locals.get(expr.name.symbol).defined) {
+            errors.error(expr.name, 
+                "Can't read local variable in its own initializer.");
+        }
+
+        resolveLocal(expr.name, (depth, slot) -> {
+            expr.depth = depth;
+            expr.slot = slot;
+        });
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        resolve(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        resolve(expr.value);
+        resolve(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        if (currentClass == ClassType.NONE) {
+            errors.error(expr.keyword, "Can't use 'super' outside of a class.");
+        } else if (currentClass != ClassType.SUBCLASS) {
+            errors.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
+        }
+        
+        resolveLocal(expr.keyword, (depth, slot) -> {
+            expr.depth = depth;
+            expr.slot = slot;
+        });
+        resolveLocal(thisToken(expr.keyword), (depth, slot) -> {
+            expr.thisDepth = depth;
+            expr.thisSlot = slot;
+        });
+        return null;
+    }
+
+    private static Token thisToken(Token near) {
+        return new Token(TokenType.THIS, Symbol.THIS, near.line, near.source);
+    }
+
+    private void resolveFunction(Stmt.Function function, FunctionType type) {
+        FunctionType enclosingFunction = currentFunction;
+        currentFunction = type;
+        Frame enclosingFrame = frame;
+        frame = new Frame();
+
+        beginScope();
+        int[] paramSlots = new int[function.params.size()];
+        boolean[] paramInFrame = new boolean[paramSlots.length];
+        for (int i = 0; i < paramSlots.length; i++) {
+            int index = i;
+            Token param = function.params.get(i);
+            declare(param, (depth, slot) -> {
+                paramSlots[index] = slot;
+                paramInFrame[index] = depth == FRAME;
+            });
+            define(param);
+        }
+        // A method's "this" is one of its locals, declared after the
+        // parameters. The receiver is staged in its frame slot like one
+        // more argument, so calls need no environment to hold it.
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            Token self = thisToken(function.name);
+            declare(self, (depth, slot) -> {
+                function.thisSlot = slot;
+                function.thisInFrame = depth == FRAME;
+            });
+            define(self);
+        }
+        resolve(function.body);
+        function.slotCount = endScope();
+        function.paramSlots = paramSlots;
+        function.paramInFrame = paramInFrame;
+        function.frameSize = frame.size;
+
+        frame = enclosingFrame;
+        currentFunction = enclosingFunction;
+    }
+
+    private void beginScope() {
+        scope = new Scope(scope, frame);
+    }
+
+    // Gives the scope's locals and their references their addresses, and
+    // returns the number of slots the scope's environment needs.
+    private int endScope() {
+        Scope ended = scope;
+        for (Local local : ended.declared) {
+            if (local.captured) local.slot = ended.slotCount++;
+        }
+
+        for (Local local : ended.declared) {
+            for (Use use : local.uses) {
+                if (!local.captured) {
+                    use.address.set(FRAME, local.frameSlot);
+                    continue;
+                }
+                // Only the scopes with an environment count.
+                int depth = 0;
+                for (Scope s = use.from; s != ended; s = s.enclosing) {
+                    if (s.needsEnvironment()) depth++;
+                }
+                use.address.set(depth, local.slot);
+            }
+        }
+
+        ended.frame.next = ended.frameStart;
+        scope = ended.enclosing;
+        return ended.slotCount;
+    }
+
+    // Top-level declarations are globals, addressed by name.
+    private void declare(Token name, Address address) {
+        if (scope == null) {
+            address.set(GLOBAL, -1);
+            return;
+        }
+
+        if (scope.locals.containsKey(name.symbol)) {
+            errors.error(name, "Already a variable with this name in this scope.");
+        }
+
+        Frame frame = scope.frame;
+        Local local = new Local(scope, frame.next++);
+        frame.size = Math.max(frame.size, frame.next);
+        local.uses.add(new Use(scope, address));
+        scope.locals.put(name.symbol, local);
+        scope.declared.add(local);
+    }
+
+    private void define(Token name) {
+        if (scope == null) return;
+        scope.locals.get(name.symbol).defined = true;
+    }
+
+    // "super" is read from the methods, so it is always captured.
+    private void defineSynthetic(Symbol name) {
+        Local local = new Local(scope, -1);
+        local.defined = true;
+        local.captured = true;
+        scope.locals.put(name, local);
+        scope.declared.add(local);
+    }
+
+    // A name not declared in any enclosing scope is left to the globals. A
+    // local read from a function nested in the one declaring it is
+    // captured.
+    private void resolveLocal(Token name, Address address) {
+        for (Scope s = scope; s != null; s = s.enclosing) {
+            Local local = s.locals.get(name.symbol);
+            if (local != null) {
+                if (s.frame != frame) local.captured = true;
+                local.uses.add(new Use(scope, address));
+                return;
+            }
+        }
+
+        address.set(GLOBAL, -1);
+    }
+
+    private void resolve(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void resolve(Expr expr) {
+        expr.accept(this);
+    }
+}
+
+// -------------------- Optimizer --------------------
+// An optional pass over the resolved tree. It folds operators whose operands
+// are literals, drops branches and loops whose conditions are literals, and
+// merges blocks that declare nothing into the enclosing block. Anything that
+// could fail at runtime, such as "1 + nil" or "-\"a\"", is left for the
+// interpreter to report as usual. The result shares the untouched subtrees
+// with the input and must be resolved again, since the nodes it creates
+// carry no resolution.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    List<Stmt> optimize(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            add(optimized, optimize(statement));
+        }
+        return optimized;
+    }
+
+    // Adds an optimized statement to a list, merging in a block that
+    // declares nothing. A null statement has been optimized away.
+    private static void add(List<Stmt> statements, Stmt stmt) {
+        if (stmt instanceof Stmt.Block && Resolver.declaresNothing(((Stmt.Block) stmt).statements)) {
+            statements.addAll(((Stmt.Block) stmt).statements);
+        } else if (stmt != null) {
+            statements.add(stmt);
+        }
+    }
+
+    private Stmt optimize(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private static boolean isConstant(Expr expr) {
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object valueOf(Expr expr) {
+        return ((Expr.Literal) expr).value;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = optimize(stmt.statements);
+        if (Resolver.declaresNothing(statements)) {
+            // Without declarations the block needs no scope of its own.
+            if (statements.isEmpty()) return null;
+            if (statements.size() == 1) return statements.get(0);
+        }
+        return new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        return new Stmt.Function(stmt.name, stmt.params, optimize(stmt.body));
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+        for (Stmt.Function method : stmt.methods) {
+            methods.add((Stmt.Function) visitFunctionStmt(method));
+        }
+        return new Stmt.Class(stmt.name, stmt.superclass, methods);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        Stmt thenBranch = optimize(stmt.thenBranch);
+        Stmt elseBranch = optimize(stmt.elseBranch);
+        if (isConstant(condition)) {
+            return Interpreter.isTruthy(valueOf(condition)) ? thenBranch : elseBranch;
+        }
+        // An optimized-away branch still needs a statement to stand in for it.
+        if (thenBranch == null) thenBranch = new Stmt.Block(new ArrayList<>());
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+        Expr value = optimize(stmt.value);
+        return value == stmt.value ? stmt : new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return stmt;
+        Expr initializer = optimize(stmt.initializer);
+        return initializer == stmt.initializer ? stmt : new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (isConstant(condition) && !Interpreter.isTruthy(valueOf(condition))) return null;
+        Stmt body = optimize(stmt.body);
+        if (body == null) body = new Stmt.Block(new ArrayList<>());
+        return new Stmt.While(condition, body);
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        Stmt initializer = optimize(stmt.initializer);
+        Expr condition = stmt.condition == null ? null : optimize(stmt.condition);
+        if (condition != null && isConstant(condition)) {
+            if (!Interpreter.isTruthy(valueOf(condition))) {
+                // Only the initializer runs, still in a scope of its own.
+                if (initializer == null) return null;
+                return new Stmt.Block(new ArrayList<>(Arrays.asList(initializer)));
+            }
+            condition = null;
+        }
+
+        Expr increment = stmt.increment == null ? null : optimize(stmt.increment);
+        Stmt body = optimize(stmt.body);
+        if (body == null) body = new Stmt.Block(new ArrayList<>());
+        return new Stmt.For(initializer, condition, increment, body);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+        return value == expr.value ? expr : new Expr.Assign(expr.name, value);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (isConstant(left) && isConstant(right)) {
+            Object value = fold(expr.operator.type, valueOf(left), valueOf(right));
+            if (value != CANNOT_FOLD) return new Expr.Literal(value);
+        }
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    // Returned by fold() when the operation would be a runtime error.
+    private static final Object CANNOT_FOLD = new Object();
+
+    private static Object fold(TokenType operator, Object left, Object right) {
+        switch (operator) {
+            case BANG_EQUAL: return !Interpreter.isEqual(left, right);
+            case EQUAL_EQUAL: return Interpreter.isEqual(left, right);
+            case PLUS:
+                // A folded literal is shared like any other, so it gets an
+                // exact-size buffer rather than one concat() left room in.
+                if (left instanceof LoxString && right instanceof LoxString) {
+                    return LoxString.of(left.toString() + right.toString());
+                }
+                break;
+            default:
+                break;
+        }
+
+        if (!(left instanceof Double) || !(right instanceof Double)) return CANNOT_FOLD;
+        double a = (double)left;
+        double b = (double)right;
+        switch (operator) {
+            case GREATER: return a > b;
+            case GREATER_EQUAL: return a >= b;
+            case LESS: return a < b;
+            case LESS_EQUAL: return a <= b;
+            case MINUS: return a - b;
+            case PLUS: return a + b;
+            case SLASH: return a / b;
+            case STAR: return a * b;
+            default: return CANNOT_FOLD;
+        }
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+        boolean changed = callee != expr.callee;
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        for (Expr argument : expr.arguments) {
+            Expr optimized = optimize(argument);
+            changed |= optimized != argument;
+            arguments.add(optimized);
+        }
+        return changed ? new Expr.Call(callee, expr.paren, arguments) : expr;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = optimize(expr.object);
+        return object == expr.object ? expr : new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        // Parentheses only matter to the parser.
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (isConstant(left)) {
+            // The operator yields the left operand if it decides the result,
+            // and the right operand otherwise.
+            boolean truthy = Interpreter.isTruthy(valueOf(left));
+            boolean decided = expr.operator.type == TokenType.OR ? truthy : !truthy;
+            return decided ? left : right;
+        }
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
     }
-}
 
-// -------------------- Scanner --------------------
-class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
-    private int start = 0;
-    private int current = 0;
-    private int line = 1;
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
 
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and",    TokenType.AND);
-        keywords.put("class",  TokenType.CLASS);
-        keywords.put("else",   TokenType.ELSE);
-        keywords.put("false",  TokenType.FALSE);
-        keywords.put("for",    TokenType.FOR);
-        keywords.put("fun",    TokenType.FUN);
-        keywords.put("if",     TokenType.IF);
-        keywords.put("nil",    TokenType.NIL);
-        keywords.put("or",     TokenType.OR);
-        keywords.put("print",  TokenType.PRINT);
-        keywords.put("return", TokenType.RETURN);
-        keywords.put("super",  TokenType.SUPER);
-        keywords.put("this",   TokenType.THIS);
-        keywords.put("true",   TokenType.TRUE);
-        keywords.put("var",    TokenType.VAR);
-        keywords.put("while",  TokenType.WHILE);
-    }
-
-    Scanner(String source) {
-        this.source = source;
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+        if (isConstant(right)) {
+            Object value = valueOf(right);
+            if (expr.operator.type == TokenType.BANG) {
+                return new Expr.Literal(!Interpreter.isTruthy(value));
+            }
+            if (value instanceof Double) {
+                return new Expr.Literal(-(double)value);
+            }
+        }
+        return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
     }
 
-    List<Token> scanTokens() {
-        while (!isAtEnd()) {
-            // We are at the beginning of the next lexeme.
-            start = current;
-            scanToken();
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+}
+
+// -------------------- Interpreter --------------------
+class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Interpreter.Completion> {
+    // How a statement finished. A return passes RETURN up through the
+    // enclosing statements to the call, which reads the value from
+    // returnValue; unwinding never involves an exception.
+    enum Completion {
+        NORMAL,
+        RETURN
+    }
+
+    private final Environment globals = new Environment();
+    private final PrintStream out;
+    private final ErrorReporter errors;
+    private Environment environment = globals;
+    // Frames of the calls in progress, holding the locals no closure
+    // captures. The running call's frame starts at fp, and the next call's
+    // will start at sp.
+    private Object[] stack = new Object[256];
+    private int fp = 0;
+    private int sp = 0;
+    private boolean specializing;
+    private boolean compiling;
+    private boolean tailCalls;
+    private Object returnValue;
+    // Left by a return in tail position for the function returning.
+    private TailCall tailCall;
+
+    // A call a function returns the result of, to be made once the
+    // function's own frame is gone.
+    static class TailCall {
+        final LoxFunction function;
+        // The instance a method is called on, or null.
+        final LoxInstance receiver;
+        final Object[] arguments;
+
+        TailCall(LoxFunction function, LoxInstance receiver, Object[] arguments) {
+            this.function = function;
+            this.receiver = receiver;
+            this.arguments = arguments;
         }
+    }
 
-        tokens.add(new Token(TokenType.EOF, "", null, line));
-        return tokens;
+    Interpreter(PrintStream out, ErrorReporter errors) {
+        this.out = out;
+        this.errors = errors;
+        globals.define(Symbol.CLOCK, new ClockFunction());
     }
 
-    private void scanToken() {
-        char c = advance();
-        switch (c) {
-            case '(': addToken(TokenType.LEFT_PAREN); break;
-            case ')': addToken(TokenType.RIGHT_PAREN); break;
-            case '{': addToken(TokenType.LEFT_BRACE); break;
-            case '}': addToken(TokenType.RIGHT_BRACE); break;
-            case ',': addToken(TokenType.COMMA); break;
-            case '.': addToken(TokenType.DOT); break;
-            case '-': addToken(TokenType.MINUS); break;
-            case '+': addToken(TokenType.PLUS); break;
-            case ';': addToken(TokenType.SEMICOLON); break;
-            case '*': addToken(TokenType.STAR); break;
-            case '!':
-                addToken(match('=') ? TokenType.BANG_EQUAL : TokenType.BANG);
-                break;
-            case '=':
-                addToken(match('=') ? TokenType.EQUAL_EQUAL : TokenType.EQUAL);
-                break;
-            case '<':
-                addToken(match('=') ? TokenType.LESS_EQUAL : TokenType.LESS);
-                break;
-            case '>':
-                addToken(match('=') ? TokenType.GREATER_EQUAL : TokenType.GREATER);
-                break;
-            case '/':
-                if (match('/')) {
-                    // A comment goes until the end of the line.
-                    while (peek() != '\n' && !isAtEnd()) advance();
-                } else {
-                    addToken(TokenType.SLASH);
-                }
-                break;
-            case ' ':
-            case '\r':
-            case '\t':
-                // Ignore whitespace.
-                break;
-            case '\n':
-                line++;
-                break;
-            case '"': string(); break;
-            default:
-                if (isDigit(c)) {
-                    number();
-                } else if (isAlpha(c)) {
-                    identifier();
-                } else {
-                    Main.error(line, "Unexpected character: " + c);
+    // Lets binary expressions rewrite themselves around the operand types
+    // they see; see executeSpecialized().
+    void enableSpecialization() {
+        specializing = true;
+    }
+
+    // Lets hot functions be compiled to JVM bytecode; see FunctionCompiler.
+    void enableCompilation() {
+        compiling = true;
+    }
+
+    boolean compilesHotFunctions() {
+        return compiling;
+    }
+
+    boolean runsTailCalls() {
+        return tailCalls;
+    }
+
+    // Lets "return f(...)" hand the call to the function returning instead
+    // of making it, so that tail calls, including mutually recursive ones,
+    // run in constant Java stack space; see LoxFunction.execute().
+    void enableTailCalls() {
+        tailCalls = true;
+    }
+
+    // Returns the tail call the last return left, if any, and clears it.
+    TailCall takeTailCall() {
+        TailCall call = tailCall;
+        tailCall = null;
+        return call;
+    }
+
+    Object returnValue() {
+        return returnValue;
+    }
+
+    Object globalValue(Symbol name) {
+        return globals.lookUp(name);
+    }
+
+    // The frame size is what the Resolver found the top-level blocks need.
+    void interpret(List<Stmt> statements, int frameSize) {
+        pushFrame(frameSize);
+        try {
+            for (Stmt statement : statements) {
+                execute(statement);
+            }
+        } catch (RuntimeError error) {
+            errors.runtimeError(error);
+        } finally {
+            popFrame(0);
+        }
+    }
+
+    private Object evaluate(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private Completion execute(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    // Runs a function body in a frame of its own, with the arguments
+    // staged. The environment holds the captured parameters and locals, if
+    // the function has any.
+    Completion executeCall(Stmt.Function function, Environment closure) {
+        Environment environment = closure;
+        if (function.slotCount > 0) environment = new Environment(closure, function.slotCount);
+
+        int callerFp = fp;
+        pushFrame(function.frameSize);
+        try {
+            // The staged arguments are the first slots of the frame, which
+            // is where the parameters kept there live; only captured ones
+            // have to move.
+            for (int i = 0; i < function.paramSlots.length; i++) {
+                if (!function.paramInFrame[i]) {
+                    environment.define(function.paramSlots[i], stack[fp + i]);
                 }
-                break;
+            }
+            if (function.thisSlot >= 0 && !function.thisInFrame) {
+                environment.define(function.thisSlot, stack[fp + function.paramSlots.length]);
+            }
+            return executeBlock(function.body, environment);
+        } finally {
+            popFrame(callerFp);
         }
     }
 
-    private void identifier() {
-        while (isAlphaNumeric(peek())) advance();
+    private void pushFrame(int size) {
+        fp = sp;
+        sp = fp + size;
+        ensureStack(sp);
+    }
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = TokenType.IDENTIFIER;
-        addToken(type);
+    private void ensureStack(int size) {
+        if (size > stack.length) stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
     }
 
-    private void number() {
-        while (isDigit(peek())) advance();
+    // Arguments for a FrameCallable are staged at sp, where the frame of
+    // the call will start.
+    void stageArgument(int index, Object value) {
+        ensureStack(sp + index + 1);
+        stack[sp + index] = value;
+    }
 
-        // Look for a fractional part.
-        if (peek() == '.' && isDigit(peekNext())) {
-            // Consume the "."
-            advance();
+    // Where compiled code reads the staged arguments from. The stack can
+    // grow, so these are only good until the next call.
+    Object[] stagedArguments() {
+        return stack;
+    }
 
-            while (isDigit(peek())) advance();
+    int stagedOffset() {
+        return sp;
+    }
+
+    // Clears the frame, so it keeps nothing alive, and returns to the
+    // caller's.
+    private void popFrame(int callerFp) {
+        Arrays.fill(stack, fp, sp, null);
+        sp = fp;
+        fp = callerFp;
+    }
+
+    Completion executeBlock(List<Stmt> statements, Environment environment) {
+        Environment previous = this.environment;
+        try {
+            this.environment = environment;
+
+            for (Stmt statement : statements) {
+                if (execute(statement) == Completion.RETURN) return Completion.RETURN;
+            }
+            return Completion.NORMAL;
+        } finally {
+            this.environment = previous;
+        }
+    }
+
+    @Override
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.scoped) {
+            for (Stmt statement : stmt.statements) {
+                if (execute(statement) == Completion.RETURN) return Completion.RETURN;
+            }
+            return Completion.NORMAL;
+        }
+        return executeBlock(stmt.statements, new Environment(environment, stmt.slotCount));
+    }
+
+    @Override
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
+        evaluate(stmt.expression);
+        return Completion.NORMAL;
+    }
+    
+    @Override
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+        LoxFunction function = new LoxFunction(stmt, environment, false);
+        declare(stmt.name, stmt.slot, stmt.inFrame, function);
+        return Completion.NORMAL;
+    }
+
+    @Override
+    public Completion visitIfStmt(Stmt.If stmt) {
+        if (isTruthy(evaluate(stmt.condition))) {
+            return execute(stmt.thenBranch);
+        } else if (stmt.elseBranch != null) {
+            return execute(stmt.elseBranch);
+        }
+        return Completion.NORMAL;
+    }
+
+    @Override
+    public Completion visitPrintStmt(Stmt.Print stmt) {
+        Object value = evaluate(stmt.expression);
+        out.println(stringify(value));
+        return Completion.NORMAL;
+    }
+
+    @Override
+    public Completion visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tailCall && tailCalls) return tailCall((Expr.Call)stmt.value);
+
+        Object value = null;
+        if (stmt.value != null) {
+            value = evaluate(stmt.value);
+        }
+        
+        returnValue = value;
+        return Completion.RETURN;
+    }
+
+    @Override
+    public Completion visitVarStmt(Stmt.Var stmt) {
+        Object value = null;
+        if (stmt.initializer != null) {
+            value = evaluate(stmt.initializer);
+        }
+
+        declare(stmt.name, stmt.slot, stmt.inFrame, value);
+        return Completion.NORMAL;
+    }
+
+    @Override
+    public Completion visitWhileStmt(Stmt.While stmt) {
+        while (isTruthy(evaluate(stmt.condition))) {
+            if (execute(stmt.body) == Completion.RETURN) return Completion.RETURN;
+        }
+        return Completion.NORMAL;
+    }
+
+    @Override
+    public Completion visitForStmt(Stmt.For stmt) {
+        Environment previous = environment;
+        try {
+            if (stmt.slotCount > 0) environment = new Environment(environment, stmt.slotCount);
+            if (stmt.initializer != null) execute(stmt.initializer);
+
+            while (stmt.condition == null || isTruthy(evaluate(stmt.condition))) {
+                if (execute(stmt.body) == Completion.RETURN) return Completion.RETURN;
+                if (stmt.increment != null) evaluate(stmt.increment);
+            }
+            return Completion.NORMAL;
+        } finally {
+            environment = previous;
+        }
+    }
+
+    @Override
+    public Completion visitClassStmt(Stmt.Class stmt) {
+        Object superclass = null;
+        if (stmt.superclass != null) {
+            superclass = evaluate(stmt.superclass);
+            if (!(superclass instanceof LoxClass)) {
+                throw new RuntimeError(stmt.superclass.name,
+                    "Superclass must be a class.");
+            }
+        }
+        
+        declare(stmt.name, stmt.slot, stmt.inFrame, null);
+        
+        if (stmt.superclass != null) {
+            environment = new Environment(environment, 1);
+            environment.define(0, superclass);
+        }
+        
+        Map<Symbol, LoxFunction> methods = new HashMap<>();
+        for (Stmt.Function method : stmt.methods) {
+            boolean isInitializer = method.name.symbol == Symbol.INIT;
+            LoxFunction function = new LoxFunction(method, environment, true, isInitializer);
+            methods.put(method.name.symbol, function);
+        }
+        
+        Shape superclassRoot = superclass == null ? null : ((LoxClass)superclass).rootShape;
+        LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass)superclass,
+                                      Shape.root(stmt, superclassRoot), methods);
+        
+        if (stmt.superclass != null) {
+            environment = environment.enclosing;
+        }
+        
+        declare(stmt.name, stmt.slot, stmt.inFrame, klass);
+        return Completion.NORMAL;
+    }
+
+    @Override
+    public Object visitAssignExpr(Expr.Assign expr) {
+        Object value = evaluate(expr.value);
+        
+        if (expr.depth == Resolver.FRAME) {
+            stack[fp + expr.slot] = value;
+        } else if (expr.depth >= 0) {
+            environment.assignAt(expr.depth, expr.slot, value);
+        } else {
+            globals.assign(expr.name, value);
+        }
+        
+        return value;
+    }
+
+    @Override
+    public Object visitBinaryExpr(Expr.Binary expr) {
+        if (specializing) return executeSpecialized(expr);
+        return binaryOperation(expr, evaluate(expr.left), evaluate(expr.right));
+    }
+
+    // Node rewriting: the first execution records the operand types, later
+    // ones take the matching fast path, and a site that ever sees a type it
+    // did not specialize on goes back to the generic path for good.
+    private Object executeSpecialized(Expr.Binary expr) {
+        switch (expr.specialization) {
+            case NUMBER:
+                if (isArithmetic(expr.operator.type)) {
+                    try {
+                        return executeNumber(expr);
+                    } catch (UnexpectedResult result) {
+                        return result.result;
+                    }
+                }
+                return executeNumberComparison(expr);
+            case STRING:
+                return executeString(expr);
+            case GENERIC:
+                return binaryOperation(expr, evaluate(expr.left), evaluate(expr.right));
+            default:
+                Object left = evaluate(expr.left);
+                Object right = evaluate(expr.right);
+                expr.specialization = specializationFor(expr.operator.type, left, right);
+                return binaryOperation(expr, left, right);
+        }
+    }
+
+    private static Expr.Binary.Specialization specializationFor(TokenType operator,
+                                                                Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return Expr.Binary.Specialization.NUMBER;
+        }
+        if (left instanceof LoxString && right instanceof LoxString &&
+            (operator == TokenType.PLUS || operator == TokenType.EQUAL_EQUAL ||
+             operator == TokenType.BANG_EQUAL)) {
+            return Expr.Binary.Specialization.STRING;
+        }
+        return Expr.Binary.Specialization.GENERIC;
+    }
+
+    private static boolean isArithmetic(TokenType operator) {
+        return operator == TokenType.PLUS || operator == TokenType.MINUS ||
+               operator == TokenType.STAR || operator == TokenType.SLASH;
+    }
+
+    // Arithmetic nested inside a numeric site is evaluated as a primitive, so
+    // only the outermost node of an expression tree boxes its result.
+    private double executeNumber(Expr.Binary expr) {
+        double left;
+        double right;
+        try {
+            left = evaluateNumber(expr.left);
+        } catch (UnexpectedResult result) {
+            return expectNumber(despecialize(expr, result.result, evaluate(expr.right)));
+        }
+        try {
+            right = evaluateNumber(expr.right);
+        } catch (UnexpectedResult result) {
+            return expectNumber(despecialize(expr, left, result.result));
         }
 
-        addToken(TokenType.NUMBER,
-                Double.parseDouble(source.substring(start, current)));
+        switch (expr.operator.type) {
+            case PLUS: return left + right;
+            case MINUS: return left - right;
+            case STAR: return left * right;
+            default: return left / right;
+        }
     }
 
-    private void string() {
-        while (peek() != '"' && !isAtEnd()) {
-            if (peek() == '\n') line++;
-            advance();
+    private Object executeNumberComparison(Expr.Binary expr) {
+        double left;
+        double right;
+        try {
+            left = evaluateNumber(expr.left);
+        } catch (UnexpectedResult result) {
+            return despecialize(expr, result.result, evaluate(expr.right));
         }
-
-        if (isAtEnd()) {
-            Main.error(line, "Unterminated string.");
-            return;
+        try {
+            right = evaluateNumber(expr.right);
+        } catch (UnexpectedResult result) {
+            return despecialize(expr, left, result.result);
         }
 
-        // The closing ".
-        advance();
-
-        // Trim the surrounding quotes.
-        String value = source.substring(start + 1, current - 1);
-        addToken(TokenType.STRING, value);
+        switch (expr.operator.type) {
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            case LESS_EQUAL: return left <= right;
+            // Same answer as Double.equals(), which isEqual() relies on.
+            case EQUAL_EQUAL:
+                return Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+            default:
+                return Double.doubleToLongBits(left) != Double.doubleToLongBits(right);
+        }
     }
 
-    private boolean match(char expected) {
-        if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
-
-        current++;
-        return true;
+    private Object executeString(Expr.Binary expr) {
+        Object left = evaluate(expr.left);
+        Object right = evaluate(expr.right);
+        if (left instanceof LoxString && right instanceof LoxString) {
+            switch (expr.operator.type) {
+                case PLUS: return ((LoxString)left).concat((LoxString)right);
+                case EQUAL_EQUAL: return left.equals(right);
+                default: return !left.equals(right);
+            }
+        }
+        return despecialize(expr, left, right);
     }
 
-    private char peek() {
-        if (isAtEnd()) return '\0';
-        return source.charAt(current);
+    private double evaluateNumber(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if (binary.specialization == Expr.Binary.Specialization.NUMBER &&
+                isArithmetic(binary.operator.type)) {
+                return executeNumber(binary);
+            }
+        }
+        return expectNumber(evaluate(expr));
     }
 
-    private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+    private static double expectNumber(Object value) {
+        if (value instanceof Double) return (double)value;
+        throw new UnexpectedResult(value);
     }
 
-    private boolean isAlpha(char c) {
-        return (c >= 'a' && c <= 'z') ||
-                (c >= 'A' && c <= 'Z') ||
-                c == '_';
+    private Object despecialize(Expr.Binary expr, Object left, Object right) {
+        expr.specialization = Expr.Binary.Specialization.GENERIC;
+        return binaryOperation(expr, left, right);
     }
 
-    private boolean isAlphaNumeric(char c) {
-        return isAlpha(c) || isDigit(c);
-    }
+    private Object binaryOperation(Expr.Binary expr, Object left, Object right) {
+        switch (expr.operator.type) {
+            case BANG_EQUAL: return !isEqual(left, right);
+            case EQUAL_EQUAL: return isEqual(left, right);
+            case GREATER:
+                checkNumberOperands(expr.operator, left, right);
+                return (double)left > (double)right;
+            case GREATER_EQUAL:
+                checkNumberOperands(expr.operator, left, right);
+                return (double)left >= (double)right;
+            case LESS:
+                checkNumberOperands(expr.operator, left, right);
+                return (double)left < (double)right;
+            case LESS_EQUAL:
+                checkNumberOperands(expr.operator, left, right);
+                return (double)left <= (double)right;
+            case MINUS:
+                checkNumberOperands(expr.operator, left, right);
+                return (double)left - (double)right;
+            case PLUS:
+                if (left instanceof Double && right instanceof Double) {
+                    return (double)left + (double)right;
+                }
 
-    private boolean isDigit(char c) {
-        return c >= '0' && c <= '9';
-    }
+                if (left instanceof LoxString && right instanceof LoxString) {
+                    return ((LoxString)left).concat((LoxString)right);
+                }
 
-    private boolean isAtEnd() {
-        return current >= source.length();
-    }
+                throw new RuntimeError(expr.operator,
+                    "Operands must be two numbers or two strings.");
+            case SLASH:
+                checkNumberOperands(expr.operator, left, right);
+                return (double)left / (double)right;
+            case STAR:
+                checkNumberOperands(expr.operator, left, right);
+                return (double)left * (double)right;
+            default:
+                break;
+        }
 
-    private char advance() {
-        return source.charAt(current++);
+        // Unreachable.
+        return null;
     }
 
-    private void addToken(TokenType type) {
-        addToken(type, null);
-    }
+    @Override
+    public Object visitCallExpr(Expr.Call expr) {
+        // Calling a method straight off an instance or 'super' skips the
+        // bound function that evaluating the callee on its own would create.
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            Object object = evaluate(get.object);
+            if (!(object instanceof LoxInstance)) {
+                throw new RuntimeError(get.name, "Only instances have properties.");
+            }
 
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
-    }
-}
+            LoxInstance instance = (LoxInstance)object;
+            PropertyCache.Entry entry = instance.lookUp(get.name, get.cache);
+            if (entry.index >= 0) {
+                return call(expr, instance.getField(entry.index));
+            }
 
-// -------------------- Function Interfaces --------------------
-interface LoxCallable {
-    int arity();
-    Object call(Interpreter interpreter, List<Object> arguments);
-}
+            LoxFunction method = instance.getMethod(entry.method);
+            checkArity(expr.paren, method, stageArguments(expr));
+            return method.callMethod(this, instance);
+        }
 
-class LoxFunction implements LoxCallable {
-    private final Stmt.Function declaration;
-    private final Environment closure;
-    private final boolean isMethod;
-    private final boolean isInitializer;
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super)expr.callee;
+            LoxFunction method = findSuperMethod(superExpr);
+            LoxInstance instance = superReceiver(superExpr);
 
-    LoxFunction(Stmt.Function declaration, Environment closure, boolean isMethod) {
-        this(declaration, closure, isMethod, false);
+            checkArity(expr.paren, method, stageArguments(expr));
+            return method.callMethod(this, instance);
+        }
+
+        return call(expr, evaluate(expr.callee));
     }
 
-    LoxFunction(Stmt.Function declaration, Environment closure, boolean isMethod, boolean isInitializer) {
-        this.declaration = declaration;
-        this.closure = closure;
-        this.isMethod = isMethod;
-        this.isInitializer = isInitializer;
+    // Evaluates a call in tail position the way visitCallExpr() does, but
+    // leaves a Lox function or method for the returning function to call.
+    // Anything else is called here.
+    private Completion tailCall(Expr.Call expr) {
+        LoxFunction function;
+        LoxInstance receiver;
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            Object object = evaluate(get.object);
+            if (!(object instanceof LoxInstance)) {
+                throw new RuntimeError(get.name, "Only instances have properties.");
+            }
+
+            receiver = (LoxInstance)object;
+            PropertyCache.Entry entry = receiver.lookUp(get.name, get.cache);
+            if (entry.index >= 0) {
+                return tailCall(expr, receiver.getField(entry.index));
+            }
+            function = receiver.getMethod(entry.method);
+        } else if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super)expr.callee;
+            function = findSuperMethod(superExpr);
+            receiver = superReceiver(superExpr);
+        } else {
+            return tailCall(expr, evaluate(expr.callee));
+        }
+
+        tailCall = new TailCall(function, receiver, tailCallArguments(expr, function));
+        return Completion.RETURN;
     }
-    
-    LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isMethod, isInitializer);
+
+    private Completion tailCall(Expr.Call expr, Object callee) {
+        if (!(callee instanceof LoxFunction)) {
+            returnValue = call(expr, callee);
+            return Completion.RETURN;
+        }
+
+        LoxFunction function = (LoxFunction)callee;
+        tailCall = new TailCall(function, null, tailCallArguments(expr, function));
+        return Completion.RETURN;
     }
-    
-    @Override
-    public int arity() {
-        return declaration.params.size();
+
+    // The frame the arguments would be staged under is about to go, so a
+    // tail call carries them in an array of its own.
+    private Object[] tailCallArguments(Expr.Call expr, LoxFunction function) {
+        int count = stageArguments(expr);
+        checkArity(expr.paren, function, count);
+        return Arrays.copyOfRange(stack, sp, sp + count);
     }
-    
-    @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
+
+    private Object call(Expr.Call expr, Object callee) {
+        int count = stageArguments(expr);
         
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(expr.paren, "Can only call functions and classes.");
         }
         
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this");
-            return returnValue.value;
+        LoxCallable function = (LoxCallable)callee;
+        checkArity(expr.paren, function, count);
+        if (function instanceof FrameCallable) {
+            return ((FrameCallable)function).callStaged(this);
+        }
+
+        // Anything else gets its arguments through the entry point for
+        // their number.
+        Object[] stack = this.stack;
+        int at = sp;
+        switch (count) {
+            case 0: return function.call0(this);
+            case 1: return function.call1(this, stack[at]);
+            case 2: return function.call2(this, stack[at], stack[at + 1]);
+            case 3: return function.call3(this, stack[at], stack[at + 1], stack[at + 2]);
+            case 4: return function.call4(this, stack[at], stack[at + 1], stack[at + 2], stack[at + 3]);
+            default: return function.call(this, Arrays.copyOfRange(stack, at, at + count));
+        }
+    }
+
+    // Evaluates the arguments and stages them; see stageArgument(). Each
+    // slot is held while the rest are evaluated, so calls made along the
+    // way put their frames above it. Returns the number of arguments.
+    private int stageArguments(Expr.Call expr) {
+        int start = sp;
+        for (Expr argument : expr.arguments) {
+            Object value = evaluate(argument);
+            ensureStack(sp + 1);
+            stack[sp++] = value;
         }
-        
-        if (isInitializer) return closure.getAt(0, "this");
-        return null;
+        sp = start;
+        return expr.arguments.size();
     }
-    
-    @Override
-    public String toString() {
-        return "<fn " + declaration.name.lexeme + ">";
+
+    private void checkArity(Token paren, LoxCallable function, int argumentCount) {
+        if (argumentCount != function.arity()) {
+            throw new RuntimeError(paren, 
+                "Expected " + function.arity() + " arguments but got " + 
+                argumentCount + ".");
+        }
     }
-}
 
-class ClockFunction implements LoxCallable {
     @Override
-    public int arity() {
-        return 0;
+    public Object visitGroupingExpr(Expr.Grouping expr) {
+        return evaluate(expr.expression);
     }
-    
+
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        return (double)System.currentTimeMillis() / 1000.0;
+    public Object visitLiteralExpr(Expr.Literal expr) {
+        return expr.value;
     }
-    
+
     @Override
-    public String toString() {
-        return "<native fn>";
-    }
-}
+    public Object visitLogicalExpr(Expr.Logical expr) {
+        Object left = evaluate(expr.left);
 
-class LoxClass implements LoxCallable {
-    final String name;
-    final LoxClass superclass;  // Add this field
-    private final Map<String, LoxFunction> methods;
+        if (expr.operator.type == TokenType.OR) {
+            if (isTruthy(left)) return left;
+        } 
+        
+        if (expr.operator.type == TokenType.AND) {
+            if (!isTruthy(left)) return left;
+        }
 
-    LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {  // Update constructor
-        this.name = name;
-        this.superclass = superclass;
-        this.methods = methods;
+        return evaluate(expr.right);
     }
 
-    LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
-        
-        // Look for method in superclass if it exists
-        if (superclass != null) {
-            return superclass.findMethod(name);
+    @Override
+    public Object visitUnaryExpr(Expr.Unary expr) {
+        Object right = evaluate(expr.right);
+
+        switch (expr.operator.type) {
+            case BANG:
+                return !isTruthy(right);
+            case MINUS:
+                checkNumberOperand(expr.operator, right);
+                return -(double)right;
+            default:
+                break;
         }
-        
+
+        // Unreachable.
         return null;
     }
 
     @Override
-    public String toString() {
-        return name;
+    public Object visitVariableExpr(Expr.Variable expr) {
+        return lookUpVariable(expr.name, expr.depth, expr.slot);
     }
 
     @Override
-    public int arity() {
-        LoxFunction initializer = findMethod("init");
-        if (initializer == null) return 0;
-        return initializer.arity();
+    public Object visitGetExpr(Expr.Get expr) {
+        Object object = evaluate(expr.object);
+        if (object instanceof LoxInstance) {
+            return ((LoxInstance) object).get(expr.name, expr.cache);
+        }
+
+        throw new RuntimeError(expr.name,
+                "Only instances have properties.");
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        LoxInstance instance = new LoxInstance(this);
-        
-        // Call the initializer if there is one
-        LoxFunction initializer = findMethod("init");
-        if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+    public Object visitSetExpr(Expr.Set expr) {
+        Object object = evaluate(expr.object);
+
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(expr.name, "Only instances have fields.");
         }
-        
-        return instance;
+
+        Object value = evaluate(expr.value);
+        ((LoxInstance) object).set(expr.name, value, expr.cache);
+        return value;
     }
-}
 
-class LoxInstance {
-    private final LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    @Override
+    public Object visitSuperExpr(Expr.Super expr) {
+        LoxFunction method = findSuperMethod(expr);
+        return method.bind(superReceiver(expr));
+    }
 
-    LoxInstance(LoxClass klass) {
-        this.klass = klass;
+    private LoxInstance superReceiver(Expr.Super expr) {
+        return (LoxInstance)lookUpVariable(expr.keyword, expr.thisDepth, expr.thisSlot);
     }
 
-    Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
-        }
+    private LoxFunction findSuperMethod(Expr.Super expr) {
+        LoxClass superclass = (LoxClass)environment.getAt(expr.depth, expr.slot);
+        LoxFunction method = superclass.findMethod(expr.method.symbol);
         
-        LoxFunction method = klass.findMethod(name.lexeme);
-        if (method != null) return method.bind(this);
+        if (method == null) {
+            throw new RuntimeError(expr.method,
+                "Undefined property '" + expr.method.lexeme + "'.");
+        }
         
-        throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
-    }
-    
-    void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        return method;
     }
 
     @Override
-    public String toString() {
-        return klass.name + " instance";
-    }
-}
-
-// -------------------- Parser --------------------
-class Parser {
-    private static class ParseError extends RuntimeException {}
-
-    private final List<Token> tokens;
-    private int current = 0;
-    private boolean specialMode;
-
-    Parser(List<Token> tokens) {
-        this(tokens, false);
+    public Object visitThisExpr(Expr.This expr) {
+        return lookUpVariable(expr.keyword, expr.depth, expr.slot);
     }
     
-    Parser(List<Token> tokens, boolean specialMode) {
-        this.tokens = tokens;
-        this.specialMode = specialMode;
+    private Object lookUpVariable(Token name, int depth, int slot) {
+        if (depth == Resolver.FRAME) {
+            return stack[fp + slot];
+        } else if (depth >= 0) {
+            return environment.getAt(depth, slot);
+        } else {
+            return globals.get(name);
+        }
     }
 
-    List<Stmt> parse() {
-        List<Stmt> statements = new ArrayList<>();
-        while (!isAtEnd()) {
-            statements.add(declaration());
+    // Top-level declarations go to the globals by name, locals to their slot
+    // in the frame or the environment.
+    private void declare(Token name, int slot, boolean inFrame, Object value) {
+        if (inFrame) {
+            stack[fp + slot] = value;
+        } else if (slot < 0) {
+            globals.define(name.symbol, value);
+        } else {
+            environment.define(slot, value);
         }
-
-        return statements;
     }
 
-    private Expr expression() {
-        return assignment();
+    private void checkNumberOperand(Token operator, Object operand) {
+        if (operand instanceof Double) return;
+        throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private Stmt declaration() {
-        try {
-            if (match(TokenType.CLASS)) return classDeclaration();
-            if (match(TokenType.FUN)) return function("function");
-            if (match(TokenType.VAR)) return varDeclaration();
-
-            return statement();
-        } catch (ParseError error) {
-            synchronize();
-            return null;
-        }
+    private void checkNumberOperands(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private Stmt classDeclaration() {
-        Token name = consume(TokenType.IDENTIFIER, "Expect class name.");
-        
-        Expr.Variable superclass = null;
-        if (match(TokenType.LESS)) {
-            consume(TokenType.IDENTIFIER, "Expect superclass name.");
-            superclass = new Expr.Variable(previous());
-        }
-        
-        consume(TokenType.LEFT_BRACE, "Expect '{' before class body.");
-        
-        List<Stmt.Function> methods = new ArrayList<>();
-        while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
-            methods.add(function("method"));
-        }
-        
-        consume(TokenType.RIGHT_BRACE, "Expect '}' after class body.");
-        
-        return new Stmt.Class(name, superclass, methods);
+    static boolean isTruthy(Object object) {
+        if (object == null) return false;
+        if (object instanceof Boolean) return (boolean)object;
+        return true;
     }
 
-    // Update the function method in Parser to handle methods
-    private Stmt.Function function(String kind) {
-        Token name = consume(TokenType.IDENTIFIER, "Expect " + kind + " name.");
-        
-        consume(TokenType.LEFT_PAREN, "Expect '(' after " + kind + " name.");
-        
-        List<Token> parameters = new ArrayList<>();
-        if (!check(TokenType.RIGHT_PAREN)) {
-            do {
-                if (parameters.size() >= 255) {
-                    error(peek(), "Can't have more than 255 parameters.");
-                }
-                
-                parameters.add(consume(TokenType.IDENTIFIER, "Expect parameter name."));
-            } while (match(TokenType.COMMA));
-        }
-        
-        consume(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
-        
-        consume(TokenType.LEFT_BRACE, "Expect '{' before " + kind + " body.");
-        List<Stmt> body = block();
-        
-        return new Stmt.Function(name, parameters, body);
+    static boolean isEqual(Object a, Object b) {
+        if (a == null && b == null) return true;
+        if (a == null) return false;
+        return a.equals(b);
     }
 
-    private Stmt varDeclaration() {
-        Token name = consume(TokenType.IDENTIFIER, "Expect variable name.");
+    static String stringify(Object object) {
+        if (object == null) return "nil";
 
-        Expr initializer = null;
-        if (match(TokenType.EQUAL)) {
-            initializer = expression();
+        if (object instanceof Double) {
+            String text = object.toString();
+            if (text.endsWith(".0")) {
+                text = text.substring(0, text.length() - 2);
+            }
+            return text;
         }
 
-        consume(TokenType.SEMICOLON, "Expect ';' after variable declaration.");
-        return new Stmt.Var(name, initializer);
+        return object.toString();
     }
+}
+// -------------------- JIT Compiler --------------------
+// Hot functions whose bodies only do arithmetic on numbers are compiled to
+// JVM bytecode, so HotSpot can optimize them like any other Java method.
+// The compiled code keeps every value in a double local; anything outside
+// that subset leaves the function in the tree walker.
+
+// Implemented by the generated classes, which read the arguments from
+// arguments[offset] on. Returns null when an argument is not a number.
+interface CompiledCode {
+    Object call(Object[] arguments, int offset);
+}
 
-    private Stmt statement() {
-        if (match(TokenType.FOR)) return forStatement();
-        if (match(TokenType.IF)) return ifStatement();
-        if (match(TokenType.PRINT)) return printStatement();
-        if (match(TokenType.RETURN)) return returnStatement();
-        if (match(TokenType.WHILE)) return whileStatement();
-        if (match(TokenType.LEFT_BRACE)) return new Stmt.Block(block());
+// Thrown by compiled code that reaches a state it cannot represent, such as
+// falling off the end of the body and returning nil.
+class Deoptimize extends RuntimeException {
+    static final Deoptimize INSTANCE = new Deoptimize();
 
-        return expressionStatement();
+    private Deoptimize() {
+        super(null, null, false, false);
     }
+}
 
-    private Stmt returnStatement() {
-        Token keyword = previous();
-        Expr value = null;
-        if (!check(TokenType.SEMICOLON)) {
-            value = expression();
+class CompiledFunction {
+    private final CompiledCode code;
+    // Where the body finds itself when it recurses: a global name, or a slot
+    // in the closure. Null when the body never calls itself.
+    private final Symbol selfName;
+    private final int selfDistance;
+    private final int selfSlot;
+
+    CompiledFunction(CompiledCode code, Symbol selfName, int selfDistance, int selfSlot) {
+        this.code = code;
+        this.selfName = selfName;
+        this.selfDistance = selfDistance;
+        this.selfSlot = selfSlot;
+    }
+
+    // Runs the compiled body, or returns null if a guard fails and the call
+    // has to be made in the tree walker. The compiled subset has no side
+    // effects, so starting over there is always safe.
+    Object call(LoxFunction function, Environment closure, Interpreter interpreter) {
+        if (selfName != null) {
+            Object callee = selfDistance < 0
+                ? interpreter.globalValue(selfName)
+                : closure.getAt(selfDistance, selfSlot);
+            // Recursive calls are compiled as direct calls, which is only
+            // right while the name still refers to this function.
+            if (callee != function) return null;
+        }
+
+        try {
+            return code.call(interpreter.stagedArguments(), interpreter.stagedOffset());
+        } catch (Deoptimize deoptimize) {
+            return null;
         }
-        
-        consume(TokenType.SEMICOLON, "Expect ';' after return value.");
-        return new Stmt.Return(keyword, value);
     }
+}
 
-    private Stmt forStatement() {
-        consume(TokenType.LEFT_PAREN, "Expect '(' after 'for'.");
+class FunctionCompiler implements Expr.Visitor<FunctionCompiler.Kind>, Stmt.Visitor<Void> {
+    // Calls a function takes in the tree walker before it is compiled.
+    static final int THRESHOLD = 1000;
 
-        Stmt initializer;
-        if (match(TokenType.SEMICOLON)) {
-            initializer = null;
-        } else if (match(TokenType.VAR)) {
-            initializer = varDeclaration();
-        } else {
-            initializer = expressionStatement();
-        }
+    enum Kind {
+        NUMBER,
+        BOOLEAN
+    }
 
-        Expr condition = null;
-        if (!check(TokenType.SEMICOLON)) {
-            condition = expression();
+    // Thrown when the function uses something the compiler does not handle,
+    // or would exceed a limit of the class file format.
+    static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
         }
-        consume(TokenType.SEMICOLON, "Expect ';' after loop condition.");
+    }
 
-        Expr increment = null;
-        if (!check(TokenType.RIGHT_PAREN)) {
-            increment = expression();
-        }
-        consume(TokenType.RIGHT_PAREN, "Expect ')' after for clauses.");
+    private static final String CLASS_NAME = "CompiledLoxFunction";
+    private static final String BODY = "body";
 
-        Stmt body = statement();
+    private final Stmt.Function declaration;
+    // Whether self tail calls loop instead of calling; see visitReturnStmt.
+    private final boolean tailCalls;
+    private final ClassFileWriter classFile = new ClassFileWriter();
+    private final MethodWriter method = new MethodWriter();
+    private final String bodyDescriptor;
+    // JVM local index of each slot of the function's frame. Slots are
+    // reused by later blocks, which remap them when they declare.
+    private final int[] frame;
+    private int nextLocal = 0;
+    private boolean callsSelf = false;
+    private int selfDistance;
+    private int selfSlot;
+    // The start of the body, after the parameters.
+    private final MethodWriter.Label start = new MethodWriter.Label();
+
+    private FunctionCompiler(Stmt.Function declaration, boolean tailCalls) {
+        this.declaration = declaration;
+        this.tailCalls = tailCalls;
+        frame = new int[declaration.frameSize];
+        Arrays.fill(frame, -1);
 
-        if (increment != null) {
-            List<Stmt> statements = new ArrayList<>();
-            statements.add(body);
-            statements.add(new Stmt.Expression(increment));
-            body = new Stmt.Block(statements);
+        StringBuilder descriptor = new StringBuilder("(");
+        for (int i = 0; i < declaration.params.size(); i++) {
+            descriptor.append('D');
         }
+        bodyDescriptor = descriptor.append(")D").toString();
+    }
 
-        if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
+    // Returns null when the function uses anything the compiler does not
+    // handle, or the generated class cannot be loaded. With tailCalls, self
+    // tail calls become jumps back to the start of the body, as --tco asks.
+    // A declaration is compiled once for each, however many contexts run it.
+    static CompiledFunction compile(Stmt.Function declaration, boolean tailCalls) {
+        synchronized (declaration) {
+            if (tailCalls) {
+                if (!declaration.loopingCompileAttempted) {
+                    declaration.loopingCompileAttempted = true;
+                    declaration.compiledLooping = tryCompile(declaration, true);
+                }
+                return declaration.compiledLooping;
+            }
+            if (!declaration.compileAttempted) {
+                declaration.compileAttempted = true;
+                declaration.compiled = tryCompile(declaration, false);
+            }
+            return declaration.compiled;
+        }
+    }
 
-        if (initializer != null) {
-            List<Stmt> statements = new ArrayList<>();
-            statements.add(initializer);
-            statements.add(body);
-            body = new Stmt.Block(statements);
+    private static CompiledFunction tryCompile(Stmt.Function declaration, boolean tailCalls) {
+        try {
+            return new FunctionCompiler(declaration, tailCalls).compile();
+        } catch (Unsupported | ReflectiveOperationException | LinkageError e) {
+            return null;
         }
+    }
 
-        return body;
+    private CompiledFunction compile() throws ReflectiveOperationException {
+        // A function that nests none has no captured locals, so everything
+        // it declares is in its frame.
+        for (int i = 0; i < declaration.params.size(); i++) {
+            if (!declaration.paramInFrame[i]) throw new Unsupported();
+            frame[declaration.paramSlots[i]] = allocateLocal();
+        }
+        method.mark(start, 0);
+        for (Stmt statement : declaration.body) {
+            statement.accept(this);
+        }
+        // Falling off the end returns nil, which is not a number.
+        deoptimize();
+        classFile.addMethod(ClassFileWriter.ACC_PRIVATE | ClassFileWriter.ACC_STATIC,
+                            BODY, bodyDescriptor, method, nextLocal);
+
+        addConstructor();
+        addCall();
+        byte[] bytes = classFile.toByteArray(CLASS_NAME, "java/lang/Object", "CompiledCode");
+        CompiledCode code = (CompiledCode)CodeLoader.define(bytes).getDeclaredConstructor().newInstance();
+        return new CompiledFunction(code, callsSelf ? declaration.name.symbol : null,
+                                    selfDistance, selfSlot);
+    }
+
+    private void addConstructor() {
+        MethodWriter constructor = new MethodWriter();
+        constructor.op(MethodWriter.ALOAD_0, 1);
+        constructor.op(MethodWriter.INVOKESPECIAL,
+                       classFile.methodRef("java/lang/Object", "<init>", "()V"), -1);
+        constructor.op(MethodWriter.RETURN, 0);
+        classFile.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", constructor, 1);
+    }
+
+    // call(arguments, offset) checks that every argument is a number before
+    // any is unboxed, then hands them to the body.
+    private void addCall() {
+        MethodWriter call = new MethodWriter();
+        MethodWriter.Label notNumber = new MethodWriter.Label();
+        int doubleClass = classFile.classRef("java/lang/Double");
+        int arity = declaration.params.size();
+
+        for (int i = 0; i < arity; i++) {
+            argument(call, i);
+            call.op(MethodWriter.INSTANCEOF, doubleClass, 0);
+            call.jump(MethodWriter.IFEQ, notNumber, -1);
+        }
+        for (int i = 0; i < arity; i++) {
+            argument(call, i);
+            call.op(MethodWriter.CHECKCAST, doubleClass, 0);
+            call.op(MethodWriter.INVOKEVIRTUAL,
+                    classFile.methodRef("java/lang/Double", "doubleValue", "()D"), 1);
+        }
+        call.op(MethodWriter.INVOKESTATIC, classFile.methodRef(CLASS_NAME, BODY, bodyDescriptor),
+                2 - 2 * arity);
+        call.op(MethodWriter.INVOKESTATIC,
+                classFile.methodRef("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;"), -1);
+        call.op(MethodWriter.ARETURN, -1);
+
+        call.mark(notNumber, 0);
+        call.op(MethodWriter.ACONST_NULL, 1);
+        call.op(MethodWriter.ARETURN, -1);
+        classFile.addMethod(ClassFileWriter.ACC_PUBLIC, "call", "([Ljava/lang/Object;I)Ljava/lang/Object;",
+                            call, 3);
+    }
+
+    private void argument(MethodWriter call, int index) {
+        call.op(MethodWriter.ALOAD_1, 1);
+        call.op(MethodWriter.ILOAD_2, 1);
+        call.push(index);
+        call.op(MethodWriter.IADD, -1);
+        call.op(MethodWriter.AALOAD, -1);
     }
 
-    private Stmt whileStatement() {
-        consume(TokenType.LEFT_PAREN, "Expect '(' after 'while'.");
-        Expr condition = expression();
-        consume(TokenType.RIGHT_PAREN, "Expect ')' after condition.");
-        Stmt body = statement();
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.scoped) throw new Unsupported();
+        for (Stmt statement : stmt.statements) {
+            statement.accept(this);
+        }
+        return null;
+    }
 
-        return new Stmt.While(condition, body);
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        throw new Unsupported();
     }
 
-    private Stmt ifStatement() {
-        consume(TokenType.LEFT_PAREN, "Expect '(' after 'if'.");
-        Expr condition = expression();
-        consume(TokenType.RIGHT_PAREN, "Expect ')' after if condition.");
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        discard(stmt.expression);
+        return null;
+    }
 
-        Stmt thenBranch = statement();
-        Stmt elseBranch = null;
-        if (match(TokenType.ELSE)) {
-            elseBranch = statement();
+    // Evaluates an expression for its effect alone.
+    private void discard(Expr expr) {
+        if (compile(expr) == Kind.NUMBER) {
+            method.op(MethodWriter.POP2, -2);
+        } else {
+            method.op(MethodWriter.POP, -1);
         }
+    }
 
-        return new Stmt.If(condition, thenBranch, elseBranch);
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported();
     }
 
-    private List<Stmt> block() {
-        List<Stmt> statements = new ArrayList<>();
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        MethodWriter.Label elseBranch = new MethodWriter.Label();
+        MethodWriter.Label end = new MethodWriter.Label();
+
+        condition(stmt.condition);
+        method.jump(MethodWriter.IFEQ, elseBranch, -1);
+        stmt.thenBranch.accept(this);
+        method.jump(MethodWriter.GOTO, end, 0);
+        method.mark(elseBranch, 0);
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        method.mark(end, 0);
+        return null;
+    }
 
-        while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
-            statements.add(declaration());
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) throw new Unsupported();
+        if (stmt.tailCall && tailCalls) {
+            // Returning a call to itself: the arguments become the new
+            // parameters and the body starts over, in the same JVM frame.
+            selfCallArguments((Expr.Call)stmt.value);
+            for (int i = declaration.params.size() - 1; i >= 0; i--) {
+                method.local(MethodWriter.DSTORE, frame[declaration.paramSlots[i]], -2);
+            }
+            method.jump(MethodWriter.GOTO, start, 0);
+            return null;
         }
+        number(stmt.value);
+        method.op(MethodWriter.DRETURN, -2);
+        return null;
+    }
 
-        consume(TokenType.RIGHT_BRACE, "Expect '}' after block.");
-        return statements;
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) throw new Unsupported();
+        if (!stmt.inFrame) throw new Unsupported();
+        number(stmt.initializer);
+        int local = allocateLocal();
+        frame[stmt.slot] = local;
+        method.local(MethodWriter.DSTORE, local, -2);
+        return null;
     }
 
-    private Stmt printStatement() {
-        Expr value = expression();
-        consume(TokenType.SEMICOLON, "Expect ';' after value.");
-        return new Stmt.Print(value);
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        MethodWriter.Label start = new MethodWriter.Label();
+        MethodWriter.Label end = new MethodWriter.Label();
+
+        method.mark(start, 0);
+        condition(stmt.condition);
+        method.jump(MethodWriter.IFEQ, end, -1);
+        stmt.body.accept(this);
+        method.jump(MethodWriter.GOTO, start, 0);
+        method.mark(end, 0);
+        return null;
     }
 
-    private Stmt expressionStatement() {
-        Expr expr = expression();
-        
-        if (specialMode && isAtEnd()) {
-            // No semicolon needed at EOF in special modes
-        } else {
-            consume(TokenType.SEMICOLON, "Expect ';' after expression.");
-        }
-        
-        return new Stmt.Expression(expr);
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        if (stmt.slotCount > 0) throw new Unsupported();
+        if (stmt.initializer != null) stmt.initializer.accept(this);
+
+        MethodWriter.Label start = new MethodWriter.Label();
+        MethodWriter.Label end = new MethodWriter.Label();
+
+        method.mark(start, 0);
+        if (stmt.condition != null) {
+            condition(stmt.condition);
+            method.jump(MethodWriter.IFEQ, end, -1);
+        }
+        stmt.body.accept(this);
+        if (stmt.increment != null) discard(stmt.increment);
+        method.jump(MethodWriter.GOTO, start, 0);
+        method.mark(end, 0);
+        return null;
     }
 
-    private Expr assignment() {
-        Expr expr = or();
-    
-        if (match(TokenType.EQUAL)) {
-            Token equals = previous();
-            Expr value = assignment();
-    
-            if (expr instanceof Expr.Variable) {
-                Token name = ((Expr.Variable)expr).name;
-                return new Expr.Assign(name, value);
-            } else if (expr instanceof Expr.Get) {
-                Expr.Get get = (Expr.Get)expr;
-                return new Expr.Set(get.object, get.name, value);
-            }
-    
-            error(equals, "Invalid assignment target.");
+    @Override
+    public Kind visitAssignExpr(Expr.Assign expr) {
+        int local = local(expr.depth, expr.slot);
+        number(expr.value);
+        method.op(MethodWriter.DUP2, 2);
+        method.local(MethodWriter.DSTORE, local, -2);
+        return Kind.NUMBER;
+    }
+
+    @Override
+    public Kind visitBinaryExpr(Expr.Binary expr) {
+        number(expr.left);
+        if (expr.operator.type == TokenType.EQUAL_EQUAL ||
+            expr.operator.type == TokenType.BANG_EQUAL) {
+            // Compare the bits, as Double.equals() does, so NaN equals
+            // itself and 0 does not equal -0 just like in the tree walker.
+            int bits = classFile.methodRef("java/lang/Double", "doubleToLongBits", "(D)J");
+            method.op(MethodWriter.INVOKESTATIC, bits, 0);
+            number(expr.right);
+            method.op(MethodWriter.INVOKESTATIC, bits, 0);
+            method.op(MethodWriter.LCMP, -3);
+            booleanFrom(expr.operator.type == TokenType.EQUAL_EQUAL
+                        ? MethodWriter.IFEQ : MethodWriter.IFNE);
+            return Kind.BOOLEAN;
+        }
+
+        number(expr.right);
+        switch (expr.operator.type) {
+            case PLUS: method.op(MethodWriter.DADD, -2); return Kind.NUMBER;
+            case MINUS: method.op(MethodWriter.DSUB, -2); return Kind.NUMBER;
+            case STAR: method.op(MethodWriter.DMUL, -2); return Kind.NUMBER;
+            case SLASH: method.op(MethodWriter.DDIV, -2); return Kind.NUMBER;
+            // dcmpg and dcmpl differ only in how they order NaN, picked here
+            // so that every comparison with NaN is false.
+            case GREATER:
+                method.op(MethodWriter.DCMPL, -3);
+                booleanFrom(MethodWriter.IFGT);
+                return Kind.BOOLEAN;
+            case GREATER_EQUAL:
+                method.op(MethodWriter.DCMPL, -3);
+                booleanFrom(MethodWriter.IFGE);
+                return Kind.BOOLEAN;
+            case LESS:
+                method.op(MethodWriter.DCMPG, -3);
+                booleanFrom(MethodWriter.IFLT);
+                return Kind.BOOLEAN;
+            case LESS_EQUAL:
+                method.op(MethodWriter.DCMPG, -3);
+                booleanFrom(MethodWriter.IFLE);
+                return Kind.BOOLEAN;
+            default:
+                throw new Unsupported();
         }
-    
-        return expr;
     }
 
-    private Expr or() {
-        Expr expr = and();
+    @Override
+    public Kind visitCallExpr(Expr.Call expr) {
+        selfCallArguments(expr);
+        method.op(MethodWriter.INVOKESTATIC, classFile.methodRef(CLASS_NAME, BODY, bodyDescriptor),
+                  2 - 2 * expr.arguments.size());
+        return Kind.NUMBER;
+    }
 
-        while (match(TokenType.OR)) {
-            Token operator = previous();
-            Expr right = and();
-            expr = new Expr.Logical(expr, operator, right);
+    // Only calls to the function itself are compiled. Pushes the arguments.
+    private void selfCallArguments(Expr.Call expr) {
+        if (!(expr.callee instanceof Expr.Variable)) throw new Unsupported();
+        Expr.Variable callee = (Expr.Variable)expr.callee;
+        boolean outside = callee.depth != Resolver.FRAME;
+        if (!outside || callee.name.symbol != declaration.name.symbol ||
+            expr.arguments.size() != declaration.params.size()) {
+            throw new Unsupported();
         }
 
-        return expr;
-    }
-
-    private Expr and() {
-        Expr expr = equality();
+        // With no environment of its own, the body runs in the closure.
+        int distance = callee.depth;
+        if (callsSelf && (distance != selfDistance || callee.slot != selfSlot)) {
+            throw new Unsupported();
+        }
+        callsSelf = true;
+        selfDistance = distance;
+        selfSlot = callee.slot;
 
-        while (match(TokenType.AND)) {
-            Token operator = previous();
-            Expr right = equality();
-            expr = new Expr.Logical(expr, operator, right);
+        for (Expr argument : expr.arguments) {
+            number(argument);
         }
+    }
 
-        return expr;
+    @Override
+    public Kind visitGetExpr(Expr.Get expr) {
+        throw new Unsupported();
     }
 
-    private Expr equality() {
-        Expr expr = comparison();
+    @Override
+    public Kind visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
 
-        while (match(TokenType.BANG_EQUAL, TokenType.EQUAL_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
+    @Override
+    public Kind visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value instanceof Double) {
+            method.ldc2(classFile.doubleConstant((double)expr.value));
+            return Kind.NUMBER;
         }
-
-        return expr;
+        if (expr.value instanceof Boolean) {
+            method.op((boolean)expr.value ? MethodWriter.ICONST_1 : MethodWriter.ICONST_0, 1);
+            return Kind.BOOLEAN;
+        }
+        throw new Unsupported();
     }
 
-    private Expr comparison() {
-        Expr expr = term();
+    @Override
+    public Kind visitLogicalExpr(Expr.Logical expr) {
+        MethodWriter.Label end = new MethodWriter.Label();
 
-        while (match(TokenType.GREATER, TokenType.GREATER_EQUAL, TokenType.LESS, TokenType.LESS_EQUAL)) {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
-        }
+        condition(expr.left);
+        method.op(MethodWriter.DUP, 1);
+        method.jump(expr.operator.type == TokenType.OR ? MethodWriter.IFNE : MethodWriter.IFEQ,
+                    end, -1);
+        method.op(MethodWriter.POP, -1);
+        condition(expr.right);
+        method.mark(end, 0);
+        return Kind.BOOLEAN;
+    }
 
-        return expr;
+    @Override
+    public Kind visitSetExpr(Expr.Set expr) {
+        throw new Unsupported();
     }
 
-    private Expr term() {
-        Expr expr = factor();
+    @Override
+    public Kind visitSuperExpr(Expr.Super expr) {
+        throw new Unsupported();
+    }
 
-        while (match(TokenType.MINUS, TokenType.PLUS)) {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
+    @Override
+    public Kind visitThisExpr(Expr.This expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Kind visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.MINUS) {
+            number(expr.right);
+            method.op(MethodWriter.DNEG, 0);
+            return Kind.NUMBER;
         }
+        condition(expr.right);
+        method.op(MethodWriter.ICONST_1, 1);
+        method.op(MethodWriter.IXOR, -1);
+        return Kind.BOOLEAN;
+    }
 
-        return expr;
+    @Override
+    public Kind visitVariableExpr(Expr.Variable expr) {
+        method.local(MethodWriter.DLOAD, local(expr.depth, expr.slot), 2);
+        return Kind.NUMBER;
     }
 
-    private Expr factor() {
-        Expr expr = unary();
+    private Kind compile(Expr expr) {
+        return expr.accept(this);
+    }
 
-        while (match(TokenType.SLASH, TokenType.STAR)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
-        }
+    private void number(Expr expr) {
+        if (compile(expr) != Kind.NUMBER) throw new Unsupported();
+    }
 
-        return expr;
+    private void condition(Expr expr) {
+        if (compile(expr) != Kind.BOOLEAN) throw new Unsupported();
     }
 
-    private Expr unary() {
-        if (match(TokenType.BANG, TokenType.MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
-        }
+    // Turns the comparison result on the stack into 0 or 1.
+    private void booleanFrom(int branch) {
+        MethodWriter.Label isTrue = new MethodWriter.Label();
+        MethodWriter.Label end = new MethodWriter.Label();
+        method.jump(branch, isTrue, -1);
+        method.op(MethodWriter.ICONST_0, 1);
+        method.jump(MethodWriter.GOTO, end, 0);
+        method.mark(isTrue, -1);
+        method.op(MethodWriter.ICONST_1, 1);
+        method.mark(end, 0);
+    }
 
-        return call();
+    private void deoptimize() {
+        method.op(MethodWriter.GETSTATIC,
+                  classFile.fieldRef("Deoptimize", "INSTANCE", "LDeoptimize;"), 1);
+        method.op(MethodWriter.ATHROW, -1);
     }
 
-    private Expr call() {
-        Expr expr = primary();
-    
-        while (true) { 
-            if (match(TokenType.LEFT_PAREN)) {
-                expr = finishCall(expr);
-            } else if (match(TokenType.DOT)) {
-                Token name = consume(TokenType.IDENTIFIER, "Expect property name after '.'.");
-                expr = new Expr.Get(expr, name);
-            } else {
-                break;
-            }
+    // Only the function's own locals are compiled; variables from enclosing
+    // functions would need the environment chain.
+    private int local(int depth, int slot) {
+        if (depth != Resolver.FRAME) throw new Unsupported();
+        int local = frame[slot];
+        if (local < 0) throw new Unsupported();
+        return local;
+    }
+
+    private int allocateLocal() {
+        int local = nextLocal;
+        nextLocal += 2;
+        // Wider indexes would need the wide prefix.
+        if (nextLocal > 255) throw new Unsupported();
+        return local;
+    }
+}
+
+// Accumulates the code of one JVM method, tracking the operand stack depth
+// the class file has to declare.
+class MethodWriter {
+    static final int ACONST_NULL = 1;
+    static final int ICONST_0 = 3;
+    static final int ICONST_1 = 4;
+    static final int SIPUSH = 17;
+    static final int LDC2_W = 20;
+    static final int DLOAD = 24;
+    static final int ILOAD_2 = 28;
+    static final int ALOAD_0 = 42;
+    static final int ALOAD_1 = 43;
+    static final int AALOAD = 50;
+    static final int DSTORE = 57;
+    static final int POP = 87;
+    static final int POP2 = 88;
+    static final int DUP = 89;
+    static final int DUP2 = 92;
+    static final int IADD = 96;
+    static final int DADD = 99;
+    static final int DSUB = 103;
+    static final int DMUL = 107;
+    static final int DDIV = 111;
+    static final int DNEG = 119;
+    static final int IXOR = 130;
+    static final int LCMP = 148;
+    static final int DCMPL = 151;
+    static final int DCMPG = 152;
+    static final int IFEQ = 153;
+    static final int IFNE = 154;
+    static final int IFLT = 155;
+    static final int IFGE = 156;
+    static final int IFGT = 157;
+    static final int IFLE = 158;
+    static final int GOTO = 167;
+    static final int DRETURN = 175;
+    static final int ARETURN = 176;
+    static final int RETURN = 177;
+    static final int GETSTATIC = 178;
+    static final int INVOKEVIRTUAL = 182;
+    static final int INVOKESPECIAL = 183;
+    static final int INVOKESTATIC = 184;
+    static final int ATHROW = 191;
+    static final int CHECKCAST = 192;
+    static final int INSTANCEOF = 193;
+
+    static class Label {
+        int position = -1;
+        // Offsets of the branch instructions waiting for the position.
+        final List<Integer> branches = new ArrayList<>();
+    }
+
+    final ByteVector code = new ByteVector();
+    private int stack = 0;
+    int maxStack = 0;
+
+    void op(int opcode, int stackEffect) {
+        code.putByte(opcode);
+        adjust(stackEffect);
+    }
+
+    void op(int opcode, int operand, int stackEffect) {
+        code.putByte(opcode).putShort(operand);
+        adjust(stackEffect);
+    }
+
+    void local(int opcode, int index, int stackEffect) {
+        code.putByte(opcode).putByte(index);
+        adjust(stackEffect);
+    }
+
+    void push(int value) {
+        code.putByte(SIPUSH).putShort(value);
+        adjust(1);
+    }
+
+    void ldc2(int constant) {
+        op(LDC2_W, constant, 2);
+    }
+
+    void jump(int opcode, Label target, int stackEffect) {
+        int position = code.length;
+        code.putByte(opcode);
+        if (target.position >= 0) {
+            putOffset(target.position - position);
+        } else {
+            target.branches.add(position);
+            code.putShort(0);
         }
-    
-        return expr;
+        adjust(stackEffect);
     }
 
-    private Expr finishCall(Expr callee) {
-        List<Expr> arguments = new ArrayList<>();
-        if (!check(TokenType.RIGHT_PAREN)) {
-            do {
-                if (arguments.size() >= 255) {
-                    error(peek(), "Can't have more than 255 arguments.");
-                }
-                arguments.add(expression());
-            } while (match(TokenType.COMMA));
+    // Places a label; the stack effect accounts for code that only reaches
+    // it by a branch.
+    void mark(Label label, int stackEffect) {
+        label.position = code.length;
+        for (int branch : label.branches) {
+            int offset = label.position - branch;
+            if (offset > Short.MAX_VALUE) throw new FunctionCompiler.Unsupported();
+            code.data[branch + 1] = (byte)(offset >> 8);
+            code.data[branch + 2] = (byte)offset;
         }
+        adjust(stackEffect);
+    }
 
-        Token paren = consume(TokenType.RIGHT_PAREN, "Expect ')' after arguments.");
+    private void putOffset(int offset) {
+        if (offset < Short.MIN_VALUE) throw new FunctionCompiler.Unsupported();
+        code.putShort(offset);
+    }
 
-        return new Expr.Call(callee, paren, arguments);
+    private void adjust(int stackEffect) {
+        stack += stackEffect;
+        maxStack = Math.max(maxStack, stack);
     }
+}
 
-    private Expr primary() {
-        if (match(TokenType.FALSE)) return new Expr.Literal(false);
-        if (match(TokenType.TRUE)) return new Expr.Literal(true);
-        if (match(TokenType.NIL)) return new Expr.Literal(null);
-        if (match(TokenType.THIS)) return new Expr.This(previous());
+// Writes a class file with methods and no fields. Version 49 predates stack
+// map frames, which keeps the generated code free of them.
+class ClassFileWriter {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_STATIC = 0x0008;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteVector pool = new ByteVector();
+    private final Map<String, Integer> constants = new HashMap<>();
+    private int poolCount = 1;
+    private final ByteVector methods = new ByteVector();
+    private int methodCount = 0;
+
+    int utf8(String value) {
+        Integer index = constants.get("U" + value);
+        if (index != null) return index;
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        pool.putByte(CONSTANT_UTF8).putShort(bytes.length).putBytes(bytes);
+        return add("U" + value, 1);
+    }
+
+    int classRef(String internalName) {
+        Integer index = constants.get("C" + internalName);
+        if (index != null) return index;
+        int name = utf8(internalName);
+        pool.putByte(CONSTANT_CLASS).putShort(name);
+        return add("C" + internalName, 1);
+    }
+
+    int doubleConstant(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        Integer index = constants.get("D" + bits);
+        if (index != null) return index;
+        pool.putByte(CONSTANT_DOUBLE).putLong(bits);
+        // Eight-byte constants take two entries.
+        return add("D" + bits, 2);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        String key = tag + owner + "." + name + descriptor;
+        Integer index = constants.get(key);
+        if (index != null) return index;
+        int ownerClass = classRef(owner);
+        int nameAndType = nameAndType(name, descriptor);
+        pool.putByte(tag).putShort(ownerClass).putShort(nameAndType);
+        return add(key, 1);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        String key = "N" + name + descriptor;
+        Integer index = constants.get(key);
+        if (index != null) return index;
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        pool.putByte(CONSTANT_NAME_AND_TYPE).putShort(nameIndex).putShort(descriptorIndex);
+        return add(key, 1);
+    }
+
+    private int add(String key, int entries) {
+        int index = poolCount;
+        constants.put(key, index);
+        poolCount += entries;
+        return index;
+    }
+
+    void addMethod(int access, String name, String descriptor, MethodWriter code, int maxLocals) {
+        if (code.code.length > 65535) throw new FunctionCompiler.Unsupported();
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int codeAttribute = utf8("Code");
+        methods.putShort(access).putShort(nameIndex).putShort(descriptorIndex).putShort(1);
+        methods.putShort(codeAttribute).putInt(12 + code.code.length);
+        methods.putShort(code.maxStack).putShort(maxLocals).putInt(code.code.length);
+        methods.putBytes(Arrays.copyOf(code.code.data, code.code.length));
+        // No exception table and no attributes.
+        methods.putShort(0).putShort(0);
+        methodCount++;
+    }
+
+    byte[] toByteArray(String name, String superName, String interfaceName) {
+        int thisClass = classRef(name);
+        int superClass = classRef(superName);
+        int interfaceClass = classRef(interfaceName);
+
+        ByteVector out = new ByteVector();
+        out.putInt(0xCAFEBABE).putShort(0).putShort(49);
+        out.putShort(poolCount).putBytes(Arrays.copyOf(pool.data, pool.length));
+        out.putShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+        out.putShort(thisClass).putShort(superClass);
+        out.putShort(1).putShort(interfaceClass);
+        out.putShort(0);
+        out.putShort(methodCount).putBytes(Arrays.copyOf(methods.data, methods.length));
+        out.putShort(0);
+        return Arrays.copyOf(out.data, out.length);
+    }
+}
 
-        if (match(TokenType.SUPER)) {
-            Token keyword = previous();
-            consume(TokenType.DOT, "Expect '.' after 'super'.");
-            Token method = consume(TokenType.IDENTIFIER, "Expect superclass method name.");
-            return new Expr.Super(keyword, method);
-        }
+class ByteVector {
+    byte[] data = new byte[256];
+    int length = 0;
 
-        if (match(TokenType.NUMBER, TokenType.STRING)) {
-            return new Expr.Literal(previous().literal);
-        }
+    ByteVector putByte(int value) {
+        ensure(1);
+        data[length++] = (byte)value;
+        return this;
+    }
 
-        if (match(TokenType.IDENTIFIER)) {
-            return new Expr.Variable(previous());
-        }
+    ByteVector putShort(int value) {
+        return putByte(value >> 8).putByte(value);
+    }
 
-        if (match(TokenType.LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
-        }
+    ByteVector putInt(int value) {
+        return putShort(value >> 16).putShort(value);
+    }
 
-        throw error(peek(), "Expect expression.");
+    ByteVector putLong(long value) {
+        return putInt((int)(value >> 32)).putInt((int)value);
     }
 
-    private boolean match(TokenType... types) {
-        for (TokenType type : types) {
-            if (check(type)) {
-                advance();
-                return true;
-            }
+    ByteVector putBytes(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, data, length, bytes.length);
+        length += bytes.length;
+        return this;
+    }
+
+    private void ensure(int size) {
+        if (length + size > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + size));
         }
+    }
+}
 
-        return false;
+// Defines generated classes next to the interpreter so they can use its
+// package-private types. Hidden classes need Java 15; older runtimes get an
+// anonymous class from sun.misc.Unsafe instead. Both are looked up
+// reflectively so the interpreter still builds for Java 8.
+class CodeLoader {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    static Class<?> define(byte[] bytes) throws ReflectiveOperationException {
+        try {
+            Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            Object noOptions = Array.newInstance(option, 0);
+            Method defineHiddenClass = LOOKUP.getClass().getMethod(
+                "defineHiddenClass", byte[].class, boolean.class, noOptions.getClass());
+            MethodHandles.Lookup lookup =
+                (MethodHandles.Lookup)invoke(defineHiddenClass, LOOKUP, bytes, true, noOptions);
+            return lookup.lookupClass();
+        } catch (ClassNotFoundException e) {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Method defineAnonymousClass = unsafeClass.getMethod(
+                "defineAnonymousClass", Class.class, byte[].class, Object[].class);
+            return (Class<?>)invoke(defineAnonymousClass, theUnsafe.get(null),
+                                    CodeLoader.class, bytes, null);
+        }
+    }
+
+    // Rethrows errors from defining the class, such as a VerifyError, as
+    // themselves rather than wrapped.
+    private static Object invoke(Method method, Object receiver,
+                                 Object... arguments) throws ReflectiveOperationException {
+        try {
+            return method.invoke(receiver, arguments);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof Error) throw (Error)e.getCause();
+            throw e;
+        }
     }
+}
 
-    private Token consume(TokenType type, String message) {
-        if (check(type)) return advance();
+// -------------------- Bytecode --------------------
+final class OpCode {
+    static final int CONSTANT = 0;
+    static final int NIL = 1;
+    static final int TRUE = 2;
+    static final int FALSE = 3;
+    static final int POP = 4;
+    static final int GET_LOCAL = 5;
+    static final int SET_LOCAL = 6;
+    static final int GET_GLOBAL = 7;
+    static final int DEFINE_GLOBAL = 8;
+    static final int SET_GLOBAL = 9;
+    static final int GET_UPVALUE = 10;
+    static final int SET_UPVALUE = 11;
+    static final int GET_PROPERTY = 12;
+    static final int ASSERT_INSTANCE = 13;
+    static final int SET_PROPERTY = 14;
+    static final int GET_SUPER = 15;
+    static final int EQUAL = 16;
+    static final int NOT_EQUAL = 17;
+    static final int GREATER = 18;
+    static final int GREATER_EQUAL = 19;
+    static final int LESS = 20;
+    static final int LESS_EQUAL = 21;
+    static final int ADD = 22;
+    static final int SUBTRACT = 23;
+    static final int MULTIPLY = 24;
+    static final int DIVIDE = 25;
+    static final int NOT = 26;
+    static final int NEGATE = 27;
+    static final int PRINT = 28;
+    static final int JUMP = 29;
+    static final int JUMP_IF_FALSE = 30;
+    static final int JUMP_IF_TRUE = 31;
+    static final int CALL = 32;
+    static final int GET_METHOD = 33;
+    static final int GET_SUPER_METHOD = 34;
+    static final int CALL_METHOD = 35;
+    static final int CLOSURE = 36;
+    static final int CLOSE_UPVALUE = 37;
+    static final int RETURN = 38;
+    static final int CLASS = 39;
+    static final int INHERIT = 40;
+    static final int METHOD = 41;
+
+    private OpCode() {}
+}
 
-        throw error(peek(), message);
+// The VM keeps every value as a 64-bit word, so numbers need no Double. A
+// number is its own IEEE 754 bits, with every NaN folded into the canonical
+// one. Anything else is a quiet NaN no number uses, with a tag in the low
+// bits: nil, false, true, or an object. An object's reference is kept in a
+// parallel Object array, at the same index as its word.
+final class Value {
+    private static final long QUIET_NAN = 0x7ffc000000000000L;
+
+    static final long NIL = QUIET_NAN | 1;
+    static final long FALSE = QUIET_NAN | 2;
+    static final long TRUE = QUIET_NAN | 3;
+    static final long OBJECT = QUIET_NAN | 4;
+
+    private Value() {}
+
+    static boolean isNumber(long word) {
+        return (word & QUIET_NAN) != QUIET_NAN;
     }
 
-    private boolean check(TokenType type) {
-        if (isAtEnd()) return false;
-        return peek().type == type;
+    static long number(double value) {
+        return Double.doubleToLongBits(value);
     }
 
-    private Token advance() {
-        if (!isAtEnd()) current++;
-        return previous();
+    static double asNumber(long word) {
+        return Double.longBitsToDouble(word);
     }
 
-    private boolean isAtEnd() {
-        return peek().type == TokenType.EOF;
+    static long bool(boolean value) {
+        return value ? TRUE : FALSE;
     }
 
-    private Token peek() {
-        return tokens.get(current);
+    static boolean isFalsey(long word) {
+        return word == NIL || word == FALSE;
     }
 
-    private Token previous() {
-        return tokens.get(current - 1);
+    // Numbers, nil and booleans are equal exactly when their words are,
+    // as Double.equals() compares the folded bits too.
+    static boolean equal(long a, Object aRef, long b, Object bRef) {
+        if (a == OBJECT && b == OBJECT) return Interpreter.isEqual(aRef, bRef);
+        return a == b;
     }
 
-    private ParseError error(Token token, String message) {
-        Main.error(token, message);
-        return new ParseError();
+    // Conversions for values crossing into and out of the VM, such as the
+    // arguments and results of native functions.
+    static long wordOf(Object value) {
+        if (value == null) return NIL;
+        if (value instanceof Boolean) return bool((Boolean)value);
+        if (value instanceof Double) return number((Double)value);
+        return OBJECT;
     }
 
-    private void synchronize() {
-        advance();
+    static Object box(long word, Object ref) {
+        if (isNumber(word)) return asNumber(word);
+        if (word == OBJECT) return ref;
+        if (word == NIL) return null;
+        return word == TRUE;
+    }
+}
 
-        while (!isAtEnd()) {
-            if (previous().type == TokenType.SEMICOLON) return;
+// Opcodes and their operands share one int array, with a parallel line
+// table so runtime errors can report the same line as the tree-walker.
+class Chunk {
+    int[] code = new int[16];
+    int[] lines = new int[16];
+    int count = 0;
+    Object[] constants = new Object[8];
+    // The constants as Value words, for the VM to push.
+    long[] constantWords = new long[8];
+    int constantCount = 0;
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+    // The script each stretch of code came from, in a program of several:
+    // the code from sourceStarts[i] on came from sourceNames[i]. Changes
+    // are rare, so this is only searched when reporting an error.
+    private final List<Integer> sourceStarts = new ArrayList<>();
+    private final List<String> sourceNames = new ArrayList<>();
+
+    void write(int word, int line, String source) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        String last = sourceNames.isEmpty() ? null : sourceNames.get(sourceNames.size() - 1);
+        if (source == null ? last != null : !source.equals(last)) {
+            sourceStarts.add(count);
+            sourceNames.add(source);
+        }
+        code[count] = word;
+        lines[count] = line;
+        count++;
+    }
+
+    // The name of the script the word at the offset came from; see
+    // Token.source.
+    String sourceAt(int offset) {
+        for (int i = sourceStarts.size() - 1; i >= 0; i--) {
+            if (sourceStarts.get(i) <= offset) return sourceNames.get(i);
+        }
+        return null;
+    }
 
-            switch (peek().type) {
-                case CLASS:
-                case FUN:
-                case VAR:
-                case FOR:
-                case IF:
-                case WHILE:
-                case PRINT:
-                case RETURN:
-                    return;
-            }
+    int addConstant(Object value) {
+        // Numbers, strings and names are immutable, so equal constants can
+        // share a slot.
+        boolean shareable = value instanceof Double || value instanceof LoxString ||
+                            value instanceof Symbol;
+        if (shareable) {
+            Integer index = constantIndex.get(value);
+            if (index != null) return index;
+        }
 
-            advance();
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+            constantWords = Arrays.copyOf(constantWords, constantCount * 2);
         }
+        constants[constantCount] = value;
+        constantWords[constantCount] = Value.wordOf(value);
+        if (shareable) constantIndex.put(value, constantCount);
+        return constantCount++;
     }
 }
 
-class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
-    private FunctionType currentFunction = FunctionType.NONE;
-    private ClassType currentClass = ClassType.NONE;
+class VmFunction {
+    final String name;
+    final Chunk chunk = new Chunk();
+    int arity = 0;
+    int upvalueCount = 0;
 
-    enum FunctionType {
-        NONE,
-        FUNCTION,
-        METHOD,
-        INITIALIZER
+    VmFunction(String name) {
+        this.name = name;
     }
 
-    enum ClassType {
-        NONE,
-        CLASS,
-        SUBCLASS
+    @Override
+    public String toString() {
+        if (name == null) return "<script>";
+        return "<fn " + name + ">";
     }
+}
+
+class VmUpvalue {
+    // Stack index while the variable is still live, -1 once closed.
+    int slot;
+    long closed;
+    Object closedRef;
+    VmUpvalue next;
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    VmUpvalue(int slot, VmUpvalue next) {
+        this.slot = slot;
+        this.next = next;
     }
+}
 
-    void resolve(List<Stmt> statements) {
-        for (Stmt statement : statements) {
-            resolve(statement);
-        }
+class VmClosure {
+    final VmFunction function;
+    final VmUpvalue[] upvalues;
+
+    VmClosure(VmFunction function) {
+        this.function = function;
+        this.upvalues = new VmUpvalue[function.upvalueCount];
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        beginScope();
-        resolve(stmt.statements);
-        endScope();
-        return null;
+    public String toString() {
+        return function.toString();
+    }
+}
+
+class VmClass {
+    final String name;
+    final Map<Symbol, VmClosure> methods = new HashMap<>();
+    final Shape rootShape = new Shape();
+    VmClosure initializer;
+
+    VmClass(String name) {
+        this.name = name;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
-        resolve(stmt.expression);
-        return null;
+    public String toString() {
+        return name;
+    }
+}
+
+class VmInstance {
+    final VmClass klass;
+    Shape shape;
+    // Value words, with the references of objects beside them.
+    long[] fields;
+    Object[] refs;
+
+    VmInstance(VmClass klass) {
+        this.klass = klass;
+        this.shape = klass.rootShape;
+        this.fields = new long[klass.rootShape.expectedSize];
+        this.refs = new Object[klass.rootShape.expectedSize];
+    }
+
+    void set(Symbol name, long value, Object ref) {
+        int index = shape.indexOf(name);
+        if (index < 0) {
+            shape = shape.withField(name);
+            index = shape.size - 1;
+            if (index == fields.length) {
+                int length = Shape.grownLength(fields.length, shape.size);
+                fields = Arrays.copyOf(fields, length);
+                refs = Arrays.copyOf(refs, length);
+            }
+        }
+
+        fields[index] = value;
+        refs[index] = ref;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
-        define(stmt.name);
+    public String toString() {
+        return klass.name + " instance";
+    }
+}
 
-        resolveFunction(stmt, FunctionType.FUNCTION);
-        return null;
+class VmGlobal {
+    long value;
+    Object ref;
+}
+
+class VmBoundMethod {
+    final Object receiver;
+    final VmClosure method;
+
+    VmBoundMethod(Object receiver, VmClosure method) {
+        this.receiver = receiver;
+        this.method = method;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
-        resolve(stmt.condition);
-        resolve(stmt.thenBranch);
-        if (stmt.elseBranch != null) resolve(stmt.elseBranch);
-        return null;
+    public String toString() {
+        return method.toString();
+    }
+}
+
+// -------------------- Bytecode Compiler --------------------
+class VmCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private enum FunctionKind {
+        SCRIPT,
+        FUNCTION,
+        METHOD,
+        INITIALIZER
     }
 
-    @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
-        resolve(stmt.expression);
-        return null;
+    private static class Local {
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
     }
 
-    @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
-        if (currentFunction == FunctionType.NONE) {
-            Main.error(stmt.keyword, "Can't return from top-level code.");
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
         }
-        
-        if (currentFunction == FunctionType.INITIALIZER) {
-            if (stmt.value != null) {
-                Main.error(stmt.keyword, "Can't return a value from an initializer.");
-            }
+    }
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final VmFunction function;
+        final FunctionKind kind;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+
+        FunctionState(FunctionState enclosing, VmFunction function, FunctionKind kind) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.kind = kind;
+
+            // Slot zero holds the callee, or the receiver inside methods.
+            boolean hasReceiver = kind == FunctionKind.METHOD || kind == FunctionKind.INITIALIZER;
+            locals.add(new Local(hasReceiver ? "this" : "", 0));
         }
+    }
 
-        if (stmt.value != null) {
-            resolve(stmt.value);
+    private FunctionState current;
+    // Where the code being emitted came from, for the chunk's tables.
+    private int line = 1;
+    private String source;
+
+    // The Resolver has already reported every static error, so compiling
+    // a resolved program cannot fail.
+    VmFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null, new VmFunction(null), FunctionKind.SCRIPT);
+        for (Stmt statement : statements) {
+            compile(statement);
         }
+        emit(OpCode.NIL);
+        emit(OpCode.RETURN);
+        return current.function;
+    }
 
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
         return null;
     }
 
-
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
-        if (stmt.initializer != null) {
-            resolve(stmt.initializer);
-        }
-        define(stmt.name);
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emit(OpCode.POP);
         return null;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
-        resolve(stmt.condition);
-        resolve(stmt.body);
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        at(stmt.name);
+        int name = identifierConstant(stmt.name);
+
+        // Declare first so the body can refer to itself.
+        if (current.scopeDepth > 0) addLocal(stmt.name.lexeme);
+        function(stmt, FunctionKind.FUNCTION);
+        defineVariable(name);
         return null;
     }
 
     @Override
     public Void visitClassStmt(Stmt.Class stmt) {
-        ClassType enclosingClass = currentClass;
-        currentClass = ClassType.CLASS;
+        at(stmt.name);
+        int name = identifierConstant(stmt.name);
+
+        if (current.scopeDepth > 0) addLocal(stmt.name.lexeme);
+        emit(OpCode.CLASS, name);
+        defineVariable(name);
 
-        declare(stmt.name);
-        define(stmt.name);
-        
-        if (stmt.superclass != null) {
-            if (stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
-                Main.error(stmt.superclass.name, 
-                    "A class can't inherit from itself.");
-            }
-            
-            currentClass = ClassType.SUBCLASS;
-            resolve(stmt.superclass);
-        }
-        
         if (stmt.superclass != null) {
+            compile(stmt.superclass);
+
             beginScope();
-            scopes.peek().put("super", true);
+            addLocal("super");
+
+            namedVariable(stmt.name, false);
+            at(stmt.superclass.name);
+            emit(OpCode.INHERIT);
         }
-        
-        beginScope();
-        scopes.peek().put("this", true);
 
+        namedVariable(stmt.name, false);
         for (Stmt.Function method : stmt.methods) {
-            FunctionType declaration = FunctionType.METHOD;
-            if (method.name.lexeme.equals("init")) {
-                declaration = FunctionType.INITIALIZER;
+            FunctionKind kind = FunctionKind.METHOD;
+            if (method.name.symbol == Symbol.INIT) {
+                kind = FunctionKind.INITIALIZER;
             }
-            resolveFunction(method, declaration);
+            function(method, kind);
+            emit(OpCode.METHOD, identifierConstant(method.name));
         }
-        
-        endScope();
-        
+        emit(OpCode.POP);
+
         if (stmt.superclass != null) {
             endScope();
         }
-        
-        currentClass = enclosingClass;
         return null;
     }
 
     @Override
-    public Void visitThisExpr(Expr.This expr) {
-        if (currentClass == ClassType.NONE) {
-            Main.error(expr.keyword, "Can't use 'this' outside of a class.");
-            return null;
-        }
-        
-        resolveLocal(expr, expr.keyword);
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(stmt.thenBranch);
+
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        emit(OpCode.POP);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
         return null;
     }
 
     @Override
-    public Void visitAssignExpr(Expr.Assign expr) {
-        resolve(expr.value);
-        resolveLocal(expr, expr.name);
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(OpCode.PRINT);
         return null;
     }
 
     @Override
-    public Void visitBinaryExpr(Expr.Binary expr) {
-        resolve(expr.left);
-        resolve(expr.right);
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        at(stmt.keyword);
+        if (current.kind == FunctionKind.INITIALIZER) {
+            emit(OpCode.GET_LOCAL, 0);
+        } else if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emit(OpCode.NIL);
+        }
+        emit(OpCode.RETURN);
         return null;
     }
 
     @Override
-    public Void visitCallExpr(Expr.Call expr) {
-        resolve(expr.callee);
+    public Void visitVarStmt(Stmt.Var stmt) {
+        at(stmt.name);
+        int name = identifierConstant(stmt.name);
 
-        for (Expr argument : expr.arguments) {
-            resolve(argument);
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(OpCode.NIL);
         }
 
+        if (current.scopeDepth > 0) {
+            addLocal(stmt.name.lexeme);
+        } else {
+            defineVariable(name);
+        }
         return null;
     }
 
     @Override
-    public Void visitGroupingExpr(Expr.Grouping expr) {
-        resolve(expr.expression);
-        return null;
-    }
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = current.function.chunk.count;
+        compile(stmt.condition);
 
-    @Override
-    public Void visitLiteralExpr(Expr.Literal expr) {
-        return null;
-    }
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(stmt.body);
+        emit(OpCode.JUMP, loopStart);
 
-    @Override
-    public Void visitLogicalExpr(Expr.Logical expr) {
-        resolve(expr.left);
-        resolve(expr.right);
+        patchJump(exitJump);
+        emit(OpCode.POP);
         return null;
     }
 
     @Override
-    public Void visitUnaryExpr(Expr.Unary expr) {
-        resolve(expr.right);
-        return null;
-    }
+    public Void visitForStmt(Stmt.For stmt) {
+        beginScope();
+        if (stmt.initializer != null) compile(stmt.initializer);
 
-    @Override
-    public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() && 
-            scopes.peek().containsKey(expr.name.lexeme) && 
-            scopes.peek().get(expr.name.lexeme) == false) {
-            Main.error(expr.name, 
-                "Can't read local variable in its own initializer.");
+        int loopStart = current.function.chunk.count;
+        int exitJump = -1;
+        if (stmt.condition != null) {
+            compile(stmt.condition);
+            exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emit(OpCode.POP);
         }
 
-        resolveLocal(expr, expr.name);
-        return null;
-    }
+        compile(stmt.body);
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            emit(OpCode.POP);
+        }
+        emit(OpCode.JUMP, loopStart);
 
-    @Override
-    public Void visitGetExpr(Expr.Get expr) {
-        resolve(expr.object);
+        if (exitJump != -1) {
+            patchJump(exitJump);
+            emit(OpCode.POP);
+        }
+        endScope();
         return null;
     }
 
     @Override
-    public Void visitSetExpr(Expr.Set expr) {
-        resolve(expr.value);
-        resolve(expr.object);
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        namedVariable(expr.name, true);
         return null;
     }
 
     @Override
-    public Void visitSuperExpr(Expr.Super expr) {
-        if (currentClass == ClassType.NONE) {
-            Main.error(expr.keyword, "Can't use 'super' outside of a class.");
-        } else if (currentClass != ClassType.SUBCLASS) {
-            Main.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
-        }
-        
-        resolveLocal(expr, expr.keyword);
-        return null;
-    }
-
-    private void resolveFunction(Stmt.Function function, FunctionType type) {
-        FunctionType enclosingFunction = currentFunction;
-        currentFunction = type;
-
-        beginScope();
-        for (Token param : function.params) {
-            declare(param);
-            define(param);
-        }
-        resolve(function.body);
-        endScope();
-
-        currentFunction = enclosingFunction;
-    }
-
-    private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
-    }
-
-    private void endScope() {
-        scopes.pop();
-    }
-
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
-
-        Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
-            Main.error(name, "Already a variable with this name in this scope.");
-        }
-
-        scope.put(name.lexeme, false);
-    }
-
-    private void define(Token name) {
-        if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
-    }
-
-    private void resolveLocal(Expr expr, Token name) {
-        for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
-            }
-        }
-    }
-
-    private void resolve(Stmt stmt) {
-        stmt.accept(this);
-    }
-
-    private void resolve(Expr expr) {
-        expr.accept(this);
-    }
-}
-
-// -------------------- Interpreter --------------------
-class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    private final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
-
-    Interpreter() {
-        globals.define("clock", new ClockFunction());
-    }
-
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
-    }
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
 
-    void interpret(List<Stmt> statements) {
-        try {
-            for (Stmt statement : statements) {
-                execute(statement);
-            }
-        } catch (RuntimeError error) {
-            Main.runtimeError(error);
+        at(expr.operator);
+        switch (expr.operator.type) {
+            case BANG_EQUAL: emit(OpCode.NOT_EQUAL); break;
+            case EQUAL_EQUAL: emit(OpCode.EQUAL); break;
+            case GREATER: emit(OpCode.GREATER); break;
+            case GREATER_EQUAL: emit(OpCode.GREATER_EQUAL); break;
+            case LESS: emit(OpCode.LESS); break;
+            case LESS_EQUAL: emit(OpCode.LESS_EQUAL); break;
+            case MINUS: emit(OpCode.SUBTRACT); break;
+            case PLUS: emit(OpCode.ADD); break;
+            case SLASH: emit(OpCode.DIVIDE); break;
+            case STAR: emit(OpCode.MULTIPLY); break;
+            default: break;
         }
+        return null;
     }
 
-    void interpretAndPrint(List<Stmt> statements) {
-        try {
-            if (statements.size() == 1 && statements.get(0) instanceof Stmt.Expression) {
-                Stmt.Expression expr = (Stmt.Expression) statements.get(0);
-                Object value = evaluate(expr.expression);
-                System.out.println(stringify(value));
-            } else {
-                for (Stmt statement : statements) {
-                    execute(statement);
-                }
-            }
-        } catch (RuntimeError error) {
-            Main.runtimeError(error);
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        // Method calls keep the callee and the receiver in two stack slots,
+        // so no bound method is allocated. The property is still looked up
+        // before the arguments run, as the tree-walker does.
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            compile(get.object);
+            at(get.name);
+            emit(OpCode.GET_METHOD, identifierConstant(get.name));
+        } else if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super)expr.callee;
+            namedVariable(superExpr.keyword, "this", false);
+            namedVariable(superExpr.keyword, "super", false);
+            at(superExpr.method);
+            emit(OpCode.GET_SUPER_METHOD, identifierConstant(superExpr.method));
+        } else {
+            compile(expr.callee);
         }
-    }
-
-    private Object evaluate(Expr expr) {
-        return expr.accept(this);
-    }
-
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
-    }
-
-    void executeBlock(List<Stmt> statements, Environment environment) {
-        Environment previous = this.environment;
-        try {
-            this.environment = environment;
 
-            for (Stmt statement : statements) {
-                execute(statement);
-            }
-        } finally {
-            this.environment = previous;
+        for (Expr argument : expr.arguments) {
+            compile(argument);
         }
-    }
 
-    @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        at(expr.paren);
+        boolean isMethod = expr.callee instanceof Expr.Get || expr.callee instanceof Expr.Super;
+        emit(isMethod ? OpCode.CALL_METHOD : OpCode.CALL, expr.arguments.size());
         return null;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
-        evaluate(stmt.expression);
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        at(expr.name);
+        emit(OpCode.GET_PROPERTY, identifierConstant(expr.name));
         return null;
     }
-    
+
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
         return null;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
-        if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
-        } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(OpCode.NIL);
+        } else if (expr.value instanceof Boolean) {
+            emit((Boolean)expr.value ? OpCode.TRUE : OpCode.FALSE);
+        } else {
+            emit(OpCode.CONSTANT, current.function.chunk.addConstant(expr.value));
         }
         return null;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
-        Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+
+        int opcode = expr.operator.type == TokenType.OR ? OpCode.JUMP_IF_TRUE : OpCode.JUMP_IF_FALSE;
+        int endJump = emitJump(opcode);
+        emit(OpCode.POP);
+        compile(expr.right);
+        patchJump(endJump);
         return null;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
-        Object value = null;
-        if (stmt.value != null) {
-            value = evaluate(stmt.value);
-        }
-        
-        throw new Return(value);
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+
+        // The tree-walker rejects non-instances before evaluating the value.
+        at(expr.name);
+        int name = identifierConstant(expr.name);
+        emit(OpCode.ASSERT_INSTANCE);
+        compile(expr.value);
+
+        at(expr.name);
+        emit(OpCode.SET_PROPERTY, name);
+        return null;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
-        Object value = null;
-        if (stmt.initializer != null) {
-            value = evaluate(stmt.initializer);
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+
+        at(expr.operator);
+        if (expr.operator.type == TokenType.BANG) {
+            emit(OpCode.NOT);
+        } else {
+            emit(OpCode.NEGATE);
         }
+        return null;
+    }
 
-        environment.define(stmt.name.lexeme, value);
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        namedVariable(expr.name, false);
         return null;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
-        while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
-        }
+    public Void visitThisExpr(Expr.This expr) {
+        namedVariable(expr.keyword, false);
         return null;
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
-        Object superclass = null;
-        if (stmt.superclass != null) {
-            superclass = evaluate(stmt.superclass);
-            if (!(superclass instanceof LoxClass)) {
-                throw new RuntimeError(stmt.superclass.name,
-                    "Superclass must be a class.");
-            }
+    public Void visitSuperExpr(Expr.Super expr) {
+        namedVariable(expr.keyword, "this", false);
+        namedVariable(expr.keyword, "super", false);
+        at(expr.method);
+        emit(OpCode.GET_SUPER, identifierConstant(expr.method));
+        return null;
+    }
+
+    private void function(Stmt.Function stmt, FunctionKind kind) {
+        VmFunction function = new VmFunction(stmt.name.lexeme);
+        function.arity = stmt.params.size();
+
+        FunctionState state = new FunctionState(current, function, kind);
+        current = state;
+        beginScope();
+
+        for (Token param : stmt.params) {
+            addLocal(param.lexeme);
         }
-        
-        environment.define(stmt.name.lexeme, null);
-        
-        if (stmt.superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+        for (Stmt statement : stmt.body) {
+            compile(statement);
         }
-        
-        Map<String, LoxFunction> methods = new HashMap<>();
-        for (Stmt.Function method : stmt.methods) {
-            boolean isInitializer = method.name.lexeme.equals("init");
-            LoxFunction function = new LoxFunction(method, environment, true, isInitializer);
-            methods.put(method.name.lexeme, function);
+
+        // Falling off the end returns nil, or "this" from an initializer.
+        if (kind == FunctionKind.INITIALIZER) {
+            emit(OpCode.GET_LOCAL, 0);
+        } else {
+            emit(OpCode.NIL);
         }
-        
-        LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass)superclass, methods);
-        
-        if (stmt.superclass != null) {
-            environment = environment.enclosing;
+        emit(OpCode.RETURN);
+
+        current = state.enclosing;
+        function.upvalueCount = state.upvalues.size();
+
+        at(stmt.name);
+        emit(OpCode.CLOSURE, current.function.chunk.addConstant(function));
+        for (Upvalue upvalue : state.upvalues) {
+            emit(upvalue.isLocal ? 1 : 0);
+            emit(upvalue.index);
         }
-        
-        environment.assign(stmt.name, klass);
-        return null;
     }
 
-    @Override
-    public Object visitAssignExpr(Expr.Assign expr) {
-        Object value = evaluate(expr.value);
-        
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
-        } else {
-            globals.assign(expr.name, value);
-        }
-        
-        return value;
+    private void namedVariable(Token name, boolean isSet) {
+        namedVariable(name, name.lexeme, isSet);
     }
 
-    @Override
-    public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
+    private void namedVariable(Token token, String name, boolean isSet) {
+        at(token);
 
-        switch (expr.operator.type) {
-            case BANG_EQUAL: return !isEqual(left, right);
-            case EQUAL_EQUAL: return isEqual(left, right);
-            case GREATER:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left > (double)right;
-            case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left >= (double)right;
-            case LESS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left < (double)right;
-            case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left <= (double)right;
-            case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left - (double)right;
-            case PLUS:
-                if (left instanceof Double && right instanceof Double) {
-                    return (double)left + (double)right;
-                }
+        int getOp, setOp;
+        int arg = resolveLocal(current, name);
+        if (arg != -1) {
+            getOp = OpCode.GET_LOCAL;
+            setOp = OpCode.SET_LOCAL;
+        } else if ((arg = resolveUpvalue(current, name)) != -1) {
+            getOp = OpCode.GET_UPVALUE;
+            setOp = OpCode.SET_UPVALUE;
+        } else {
+            arg = current.function.chunk.addConstant(Symbol.of(name));
+            getOp = OpCode.GET_GLOBAL;
+            setOp = OpCode.SET_GLOBAL;
+        }
 
-                if (left instanceof String && right instanceof String) {
-                    return (String)left + (String)right;
-                }
+        emit(isSet ? setOp : getOp, arg);
+    }
 
-                throw new RuntimeError(expr.operator,
-                    "Operands must be two numbers or two strings.");
-            case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left / (double)right;
-            case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left * (double)right;
-            default:
-                break;
+    private int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name)) return i;
         }
 
-        // Unreachable.
-        return null;
+        return -1;
     }
 
-    @Override
-    public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
-        
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
-        }
-        
-        if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+    private int resolveUpvalue(FunctionState state, String name) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true);
         }
-        
-        LoxCallable function = (LoxCallable)callee;
-        
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, 
-                "Expected " + function.arity() + " arguments but got " + 
-                arguments.size() + ".");
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false);
         }
-        
-        return function.call(this, arguments);
+
+        return -1;
     }
 
-    @Override
-    public Object visitGroupingExpr(Expr.Grouping expr) {
-        return evaluate(expr.expression);
+    private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+        }
+
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
     }
 
-    @Override
-    public Object visitLiteralExpr(Expr.Literal expr) {
-        return expr.value;
+    private void addLocal(String name) {
+        current.locals.add(new Local(name, current.scopeDepth));
     }
 
-    @Override
-    public Object visitLogicalExpr(Expr.Logical expr) {
-        Object left = evaluate(expr.left);
+    private int identifierConstant(Token name) {
+        return current.function.chunk.addConstant(name.symbol);
+    }
 
-        if (expr.operator.type == TokenType.OR) {
-            if (isTruthy(left)) return left;
-        } 
-        
-        if (expr.operator.type == TokenType.AND) {
-            if (!isTruthy(left)) return left;
-        }
+    private void defineVariable(int name) {
+        // Locals simply stay where their value was pushed.
+        if (current.scopeDepth > 0) return;
+        emit(OpCode.DEFINE_GLOBAL, name);
+    }
 
-        return evaluate(expr.right);
+    private void beginScope() {
+        current.scopeDepth++;
     }
 
-    @Override
-    public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
+    private void endScope() {
+        current.scopeDepth--;
 
-        switch (expr.operator.type) {
-            case BANG:
-                return !isTruthy(right);
-            case MINUS:
-                checkNumberOperand(expr.operator, right);
-                return -(double)right;
-            default:
-                break;
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            if (locals.get(locals.size() - 1).isCaptured) {
+                emit(OpCode.CLOSE_UPVALUE);
+            } else {
+                emit(OpCode.POP);
+            }
+            locals.remove(locals.size() - 1);
         }
+    }
 
-        // Unreachable.
-        return null;
+    private int emitJump(int opcode) {
+        emit(opcode, -1);
+        return current.function.chunk.count - 1;
     }
 
-    @Override
-    public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+    private void patchJump(int offset) {
+        Chunk chunk = current.function.chunk;
+        chunk.code[offset] = chunk.count;
     }
 
-    @Override
-    public Object visitGetExpr(Expr.Get expr) {
-        Object object = evaluate(expr.object);
-        if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
-        }
+    private void at(Token token) {
+        line = token.line;
+        source = token.source;
+    }
 
-        throw new RuntimeError(expr.name,
-                "Only instances have properties.");
+    private void emit(int word) {
+        current.function.chunk.write(word, line, source);
     }
 
-    @Override
-    public Object visitSetExpr(Expr.Set expr) {
-        Object object = evaluate(expr.object);
+    private void emit(int opcode, int operand) {
+        emit(opcode);
+        emit(operand);
+    }
 
-        if (!(object instanceof LoxInstance)) {
-            throw new RuntimeError(expr.name, "Only instances have fields.");
-        }
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
 
-        Object value = evaluate(expr.value);
-        ((LoxInstance) object).set(expr.name, value);
-        return value;
+    private void compile(Expr expr) {
+        expr.accept(this);
     }
+}
 
-    @Override
-    public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass)environment.getAt(distance, "super");
-        
-        // "this" is always one level nearer than "super"
-        LoxInstance instance = (LoxInstance)environment.getAt(distance - 1, "this");
-        
-        LoxFunction method = superclass.findMethod(expr.method.lexeme);
-        
-        if (method == null) {
-            throw new RuntimeError(expr.method,
-                "Undefined property '" + expr.method.lexeme + "'.");
+// -------------------- Virtual Machine --------------------
+class CallFrame {
+    VmClosure closure;
+    int ip;
+    // First stack slot of the frame and where its result is written on return.
+    int base;
+    int resultSlot;
+}
+
+class Vm {
+    private static final int FRAMES_MAX = 1 << 16;
+
+    // Value words of the stack, and the references of the objects among
+    // them; see Value. run() keeps the arrays and the stack pointer in
+    // locals, and writes sp back before anything else reads it.
+    private long[] stack = new long[256];
+    private Object[] refs = new Object[256];
+    private int sp = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    private VmUpvalue openUpvalues = null;
+    private final Map<Symbol, VmGlobal> globals = new HashMap<>();
+    private final PrintStream out;
+    private final ErrorReporter errors;
+
+    Vm(PrintStream out, ErrorReporter errors) {
+        this.out = out;
+        this.errors = errors;
+        VmGlobal clock = new VmGlobal();
+        clock.value = Value.OBJECT;
+        clock.ref = new ClockFunction();
+        globals.put(Symbol.CLOCK, clock);
+    }
+
+    void interpret(VmFunction script) {
+        VmClosure closure = new VmClosure(script);
+        stack[sp] = Value.OBJECT;
+        refs[sp++] = closure;
+
+        try {
+            call(closure, 0, 0, 0);
+            run();
+        } catch (RuntimeError error) {
+            sp = 0;
+            frameCount = 0;
+            openUpvalues = null;
+            errors.runtimeError(error);
         }
-        
-        return method.bind(instance);
     }
 
-    @Override
-    public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+    private void run() {
+        long[] stack = this.stack;
+        Object[] refs = this.refs;
+        int sp = this.sp;
+        CallFrame frame = frames[frameCount - 1];
+        int[] code = frame.closure.function.chunk.code;
+        Chunk chunk = frame.closure.function.chunk;
+        Object[] constants = frame.closure.function.chunk.constants;
+        long[] constantWords = frame.closure.function.chunk.constantWords;
+        int ip = frame.ip;
+        int base = frame.base;
+
+        for (;;) {
+            switch (code[ip++]) {
+                case OpCode.CONSTANT: {
+                    int index = code[ip++];
+                    stack[sp] = constantWords[index];
+                    refs[sp++] = constants[index];
+                    break;
+                }
+                case OpCode.NIL: stack[sp++] = Value.NIL; break;
+                case OpCode.TRUE: stack[sp++] = Value.TRUE; break;
+                case OpCode.FALSE: stack[sp++] = Value.FALSE; break;
+                case OpCode.POP: sp--; break;
+                case OpCode.GET_LOCAL: {
+                    int slot = base + code[ip++];
+                    stack[sp] = stack[slot];
+                    refs[sp++] = refs[slot];
+                    break;
+                }
+                case OpCode.SET_LOCAL: {
+                    int slot = base + code[ip++];
+                    stack[slot] = stack[sp - 1];
+                    refs[slot] = refs[sp - 1];
+                    break;
+                }
+                case OpCode.GET_GLOBAL: {
+                    Symbol name = (Symbol)constants[code[ip++]];
+                    VmGlobal global = globals.get(name);
+                    if (global == null) {
+                        throw new RuntimeError(chunk, ip - 1, "Undefined variable '" + name + "'.");
+                    }
+                    stack[sp] = global.value;
+                    refs[sp++] = global.ref;
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL: {
+                    Symbol name = (Symbol)constants[code[ip++]];
+                    VmGlobal global = globals.get(name);
+                    if (global == null) {
+                        global = new VmGlobal();
+                        globals.put(name, global);
+                    }
+                    sp--;
+                    global.value = stack[sp];
+                    global.ref = refs[sp];
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    Symbol name = (Symbol)constants[code[ip++]];
+                    VmGlobal global = globals.get(name);
+                    if (global == null) {
+                        throw new RuntimeError(chunk, ip - 1, "Undefined variable '" + name + "'.");
+                    }
+                    global.value = stack[sp - 1];
+                    global.ref = refs[sp - 1];
+                    break;
+                }
+                case OpCode.GET_UPVALUE: {
+                    VmUpvalue upvalue = frame.closure.upvalues[code[ip++]];
+                    if (upvalue.slot >= 0) {
+                        stack[sp] = stack[upvalue.slot];
+                        refs[sp++] = refs[upvalue.slot];
+                    } else {
+                        stack[sp] = upvalue.closed;
+                        refs[sp++] = upvalue.closedRef;
+                    }
+                    break;
+                }
+                case OpCode.SET_UPVALUE: {
+                    VmUpvalue upvalue = frame.closure.upvalues[code[ip++]];
+                    if (upvalue.slot >= 0) {
+                        stack[upvalue.slot] = stack[sp - 1];
+                        refs[upvalue.slot] = refs[sp - 1];
+                    } else {
+                        upvalue.closed = stack[sp - 1];
+                        upvalue.closedRef = refs[sp - 1];
+                    }
+                    break;
+                }
+                case OpCode.GET_PROPERTY: {
+                    Symbol name = (Symbol)constants[code[ip++]];
+                    if (stack[sp - 1] != Value.OBJECT || !(refs[sp - 1] instanceof VmInstance)) {
+                        throw new RuntimeError(chunk, ip - 1, "Only instances have properties.");
+                    }
+
+                    VmInstance instance = (VmInstance)refs[sp - 1];
+                    int index = instance.shape.indexOf(name);
+                    if (index >= 0) {
+                        stack[sp - 1] = instance.fields[index];
+                        refs[sp - 1] = instance.refs[index];
+                        break;
+                    }
+
+                    VmClosure method = instance.klass.methods.get(name);
+                    if (method == null) {
+                        throw new RuntimeError(chunk, ip - 1, "Undefined property '" + name + "'.");
+                    }
+                    refs[sp - 1] = new VmBoundMethod(instance, method);
+                    break;
+                }
+                case OpCode.ASSERT_INSTANCE:
+                    if (stack[sp - 1] != Value.OBJECT || !(refs[sp - 1] instanceof VmInstance)) {
+                        throw new RuntimeError(chunk, ip - 1, "Only instances have fields.");
+                    }
+                    break;
+                case OpCode.SET_PROPERTY: {
+                    Symbol name = (Symbol)constants[code[ip++]];
+                    sp--;
+                    ((VmInstance)refs[sp - 1]).set(name, stack[sp], refs[sp]);
+                    stack[sp - 1] = stack[sp];
+                    refs[sp - 1] = refs[sp];
+                    break;
+                }
+                case OpCode.GET_SUPER: {
+                    Symbol name = (Symbol)constants[code[ip++]];
+                    VmClass superclass = (VmClass)refs[--sp];
+                    VmClosure method = superclass.methods.get(name);
+                    if (method == null) {
+                        throw new RuntimeError(chunk, ip - 1, "Undefined property '" + name + "'.");
+                    }
+                    refs[sp - 1] = new VmBoundMethod(refs[sp - 1], method);
+                    break;
+                }
+                case OpCode.EQUAL:
+                    sp--;
+                    stack[sp - 1] = Value.bool(Value.equal(stack[sp - 1], refs[sp - 1], stack[sp], refs[sp]));
+                    break;
+                case OpCode.NOT_EQUAL:
+                    sp--;
+                    stack[sp - 1] = Value.bool(!Value.equal(stack[sp - 1], refs[sp - 1], stack[sp], refs[sp]));
+                    break;
+                case OpCode.GREATER: {
+                    long b = stack[--sp];
+                    long a = stack[sp - 1];
+                    checkNumberOperands(chunk, ip - 1, a, b);
+                    stack[sp - 1] = Value.bool(Value.asNumber(a) > Value.asNumber(b));
+                    break;
+                }
+                case OpCode.GREATER_EQUAL: {
+                    long b = stack[--sp];
+                    long a = stack[sp - 1];
+                    checkNumberOperands(chunk, ip - 1, a, b);
+                    stack[sp - 1] = Value.bool(Value.asNumber(a) >= Value.asNumber(b));
+                    break;
+                }
+                case OpCode.LESS: {
+                    long b = stack[--sp];
+                    long a = stack[sp - 1];
+                    checkNumberOperands(chunk, ip - 1, a, b);
+                    stack[sp - 1] = Value.bool(Value.asNumber(a) < Value.asNumber(b));
+                    break;
+                }
+                case OpCode.LESS_EQUAL: {
+                    long b = stack[--sp];
+                    long a = stack[sp - 1];
+                    checkNumberOperands(chunk, ip - 1, a, b);
+                    stack[sp - 1] = Value.bool(Value.asNumber(a) <= Value.asNumber(b));
+                    break;
+                }
+                case OpCode.ADD: {
+                    long b = stack[--sp];
+                    long a = stack[sp - 1];
+                    if (Value.isNumber(a) && Value.isNumber(b)) {
+                        stack[sp - 1] = Value.number(Value.asNumber(a) + Value.asNumber(b));
+                    } else if (a == Value.OBJECT && b == Value.OBJECT &&
+                               refs[sp - 1] instanceof LoxString && refs[sp] instanceof LoxString) {
+                        refs[sp - 1] = ((LoxString)refs[sp - 1]).concat((LoxString)refs[sp]);
+                    } else {
+                        throw new RuntimeError(chunk, ip - 1,
+                            "Operands must be two numbers or two strings.");
+                    }
+                    break;
+                }
+                case OpCode.SUBTRACT: {
+                    long b = stack[--sp];
+                    long a = stack[sp - 1];
+                    checkNumberOperands(chunk, ip - 1, a, b);
+                    stack[sp - 1] = Value.number(Value.asNumber(a) - Value.asNumber(b));
+                    break;
+                }
+                case OpCode.MULTIPLY: {
+                    long b = stack[--sp];
+                    long a = stack[sp - 1];
+                    checkNumberOperands(chunk, ip - 1, a, b);
+                    stack[sp - 1] = Value.number(Value.asNumber(a) * Value.asNumber(b));
+                    break;
+                }
+                case OpCode.DIVIDE: {
+                    long b = stack[--sp];
+                    long a = stack[sp - 1];
+                    checkNumberOperands(chunk, ip - 1, a, b);
+                    stack[sp - 1] = Value.number(Value.asNumber(a) / Value.asNumber(b));
+                    break;
+                }
+                case OpCode.NOT:
+                    stack[sp - 1] = Value.bool(Value.isFalsey(stack[sp - 1]));
+                    break;
+                case OpCode.NEGATE:
+                    if (!Value.isNumber(stack[sp - 1])) {
+                        throw new RuntimeError(chunk, ip - 1, "Operand must be a number.");
+                    }
+                    stack[sp - 1] = Value.number(-Value.asNumber(stack[sp - 1]));
+                    break;
+                case OpCode.PRINT:
+                    sp--;
+                    out.println(Interpreter.stringify(Value.box(stack[sp], refs[sp])));
+                    break;
+                case OpCode.JUMP:
+                    ip = code[ip];
+                    break;
+                case OpCode.JUMP_IF_FALSE:
+                    if (Value.isFalsey(stack[sp - 1])) {
+                        ip = code[ip];
+                    } else {
+                        ip++;
+                    }
+                    break;
+                case OpCode.JUMP_IF_TRUE:
+                    if (!Value.isFalsey(stack[sp - 1])) {
+                        ip = code[ip];
+                    } else {
+                        ip++;
+                    }
+                    break;
+                case OpCode.GET_METHOD: {
+                    Symbol name = (Symbol)constants[code[ip++]];
+                    if (stack[sp - 1] != Value.OBJECT || !(refs[sp - 1] instanceof VmInstance)) {
+                        throw new RuntimeError(chunk, ip - 1, "Only instances have properties.");
+                    }
+
+                    // Leaves [callee, receiver]; a field holding a callable is
+                    // called like any other value.
+                    VmInstance instance = (VmInstance)refs[sp - 1];
+                    int index = instance.shape.indexOf(name);
+                    if (index >= 0) {
+                        stack[sp - 1] = stack[sp] = instance.fields[index];
+                        refs[sp - 1] = refs[sp] = instance.refs[index];
+                        sp++;
+                        break;
+                    }
+
+                    VmClosure method = instance.klass.methods.get(name);
+                    if (method == null) {
+                        throw new RuntimeError(chunk, ip - 1, "Undefined property '" + name + "'.");
+                    }
+                    refs[sp - 1] = method;
+                    stack[sp] = Value.OBJECT;
+                    refs[sp++] = instance;
+                    break;
+                }
+                case OpCode.GET_SUPER_METHOD: {
+                    Symbol name = (Symbol)constants[code[ip++]];
+                    VmClass superclass = (VmClass)refs[--sp];
+                    VmClosure method = superclass.methods.get(name);
+                    if (method == null) {
+                        throw new RuntimeError(chunk, ip - 1, "Undefined property '" + name + "'.");
+                    }
+                    Object receiver = refs[sp - 1];
+                    refs[sp - 1] = method;
+                    stack[sp] = Value.OBJECT;
+                    refs[sp++] = receiver;
+                    break;
+                }
+                case OpCode.CALL:
+                case OpCode.CALL_METHOD: {
+                    boolean isMethod = code[ip - 1] == OpCode.CALL_METHOD;
+                    int argCount = code[ip++];
+                    int callBase = sp - argCount - 1;
+                    int calleeSlot = isMethod ? callBase - 1 : callBase;
+                    frame.ip = ip;
+
+                    this.sp = sp;
+                    callValue(stack[calleeSlot], refs[calleeSlot], argCount, callBase, calleeSlot);
+                    // The call may have grown the stack.
+                    stack = this.stack;
+                    refs = this.refs;
+                    sp = this.sp;
+
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    chunk = frame.closure.function.chunk;
+                    constants = frame.closure.function.chunk.constants;
+                    constantWords = frame.closure.function.chunk.constantWords;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.CLOSURE: {
+                    VmFunction function = (VmFunction)constants[code[ip++]];
+                    VmClosure closure = new VmClosure(function);
+                    for (int i = 0; i < closure.upvalues.length; i++) {
+                        boolean isLocal = code[ip++] == 1;
+                        int index = code[ip++];
+                        if (isLocal) {
+                            closure.upvalues[i] = captureUpvalue(base + index);
+                        } else {
+                            closure.upvalues[i] = frame.closure.upvalues[index];
+                        }
+                    }
+                    stack[sp] = Value.OBJECT;
+                    refs[sp++] = closure;
+                    break;
+                }
+                case OpCode.CLOSE_UPVALUE:
+                    closeUpvalues(sp - 1);
+                    sp--;
+                    break;
+                case OpCode.RETURN: {
+                    sp--;
+                    long result = stack[sp];
+                    Object resultRef = refs[sp];
+                    closeUpvalues(base);
+                    frameCount--;
+                    if (frameCount == 0) {
+                        this.sp = 0;
+                        return;
+                    }
+
+                    stack[frame.resultSlot] = result;
+                    refs[frame.resultSlot] = resultRef;
+                    sp = frame.resultSlot + 1;
+
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    chunk = frame.closure.function.chunk;
+                    constants = frame.closure.function.chunk.constants;
+                    constantWords = frame.closure.function.chunk.constantWords;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.CLASS:
+                    stack[sp] = Value.OBJECT;
+                    refs[sp++] = new VmClass(((Symbol)constants[code[ip++]]).name);
+                    break;
+                case OpCode.INHERIT: {
+                    if (stack[sp - 2] != Value.OBJECT || !(refs[sp - 2] instanceof VmClass)) {
+                        throw new RuntimeError(chunk, ip - 1, "Superclass must be a class.");
+                    }
+
+                    // Methods are fixed once a class exists, so copying them
+                    // down matches walking the superclass chain on lookup.
+                    VmClass superclass = (VmClass)refs[sp - 2];
+                    VmClass subclass = (VmClass)refs[--sp];
+                    subclass.methods.putAll(superclass.methods);
+                    subclass.initializer = superclass.initializer;
+                    break;
+                }
+                case OpCode.METHOD: {
+                    Symbol name = (Symbol)constants[code[ip++]];
+                    VmClosure method = (VmClosure)refs[--sp];
+                    VmClass klass = (VmClass)refs[sp - 1];
+                    klass.methods.put(name, method);
+                    if (name == Symbol.INIT) klass.initializer = method;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + code[ip - 1] + ".");
+            }
+        }
     }
-    
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+
+    // Calls run on the same dispatch loop: closures just push a frame.
+    // Everything else completes here and leaves its result on the stack.
+    private void callValue(long callee, Object ref, int argCount, int base, int resultSlot) {
+        if (callee != Value.OBJECT) {
+            throw error("Can only call functions and classes.");
+        }
+
+        if (ref instanceof VmClosure) {
+            call((VmClosure)ref, argCount, base, resultSlot);
+        } else if (ref instanceof VmBoundMethod) {
+            VmBoundMethod bound = (VmBoundMethod)ref;
+            stack[base] = Value.OBJECT;
+            refs[base] = bound.receiver;
+            call(bound.method, argCount, base, resultSlot);
+        } else if (ref instanceof VmClass) {
+            VmClass klass = (VmClass)ref;
+            VmInstance instance = new VmInstance(klass);
+            stack[base] = Value.OBJECT;
+            refs[base] = instance;
+            if (klass.initializer != null) {
+                call(klass.initializer, argCount, base, resultSlot);
+            } else {
+                checkArity(0, argCount);
+                stack[resultSlot] = Value.OBJECT;
+                refs[resultSlot] = instance;
+                sp = resultSlot + 1;
+            }
+        } else if (ref instanceof LoxCallable) {
+            LoxCallable function = (LoxCallable)ref;
+            checkArity(function.arity(), argCount);
+
+            Object[] arguments = argCount == 0 ? LoxCallable.NO_ARGUMENTS : new Object[argCount];
+            for (int i = 1; i <= argCount; i++) {
+                arguments[i - 1] = Value.box(stack[base + i], refs[base + i]);
+            }
+            Object result = function.call(null, arguments);
+            stack[resultSlot] = Value.wordOf(result);
+            refs[resultSlot] = result;
+            sp = resultSlot + 1;
         } else {
-            return globals.get(name);
+            throw error("Can only call functions and classes.");
         }
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
-        if (operand instanceof Double) return;
-        throw new RuntimeError(operator, "Operand must be a number.");
-    }
+    private void call(VmClosure closure, int argCount, int base, int resultSlot) {
+        checkArity(closure.function.arity, argCount);
+        if (frameCount == FRAMES_MAX) throw new StackOverflowError();
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
-        if (left instanceof Double && right instanceof Double) return;
-        throw new RuntimeError(operator, "Operands must be numbers.");
+        // A frame never grows the stack by more than one slot per instruction.
+        ensureStack(base + closure.function.chunk.count + 1);
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frameCount++;
+
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = base;
+        frame.resultSlot = resultSlot;
     }
 
-    private boolean isTruthy(Object object) {
-        if (object == null) return false;
-        if (object instanceof Boolean) return (boolean)object;
-        return true;
+    private void checkArity(int arity, int argCount) {
+        if (argCount != arity) {
+            throw error("Expected " + arity + " arguments but got " + argCount + ".");
+        }
     }
 
-    private boolean isEqual(Object a, Object b) {
-        if (a == null && b == null) return true;
-        if (a == null) return false;
-        return a.equals(b);
+    private VmUpvalue captureUpvalue(int slot) {
+        VmUpvalue previous = null;
+        VmUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+        VmUpvalue created = new VmUpvalue(slot, upvalue);
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
     }
 
-    private String stringify(Object object) {
-        if (object == null) return "nil";
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.slot >= last) {
+            VmUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.closedRef = refs[upvalue.slot];
+            upvalue.slot = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
 
-        if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
+    private void ensureStack(int size) {
+        if (size > stack.length) {
+            int length = Math.max(size, stack.length * 2);
+            stack = Arrays.copyOf(stack, length);
+            refs = Arrays.copyOf(refs, length);
         }
+    }
 
-        return object.toString();
+    private void checkNumberOperands(Chunk chunk, int offset, long left, long right) {
+        if (Value.isNumber(left) && Value.isNumber(right)) return;
+        throw new RuntimeError(chunk, offset, "Operands must be numbers.");
+    }
+
+    private RuntimeError error(String message) {
+        CallFrame frame = frames[frameCount - 1];
+        return new RuntimeError(frame.closure.function.chunk, frame.ip - 1, message);
     }
-}
\ No newline at end of file
+}
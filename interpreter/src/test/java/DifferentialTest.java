@@ -0,0 +1,101 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+// Runs every script in the corpus under each engine and option, and checks
+// that stdout, stderr and the exit code match the default tree walker's.
+// Scripts named error_* stop on a compile or runtime error; most of the
+// others end on a runtime error after printing their results.
+class DifferentialTest {
+    private static final List<List<String>> OPTIONS = Arrays.asList(
+            Arrays.asList("--engine=vm"),
+            Arrays.asList("--specialize"),
+            Arrays.asList("--jit"),
+            Arrays.asList("--optimize"),
+            Arrays.asList("--tco"),
+            Arrays.asList("--mmap"),
+            Arrays.asList("--engine=vm", "--optimize"),
+            Arrays.asList("--engine=vm", "--mmap"),
+            Arrays.asList("--specialize", "--jit", "--optimize", "--tco"));
+
+    // The default run of each script, made once and shared by every option.
+    private static final Map<Path, LoxProcess.Result> expected = new HashMap<>();
+
+    @TempDir
+    static Path cacheDirectory;
+
+    static Stream<Arguments> scripts() throws IOException, URISyntaxException {
+        List<Arguments> arguments = new ArrayList<>();
+        for (Path script : corpus()) {
+            arguments.add(Arguments.of(script.getFileName().toString(), script));
+        }
+        return arguments.stream();
+    }
+
+    static Stream<Arguments> scriptsAndOptions() throws IOException, URISyntaxException {
+        List<Arguments> arguments = new ArrayList<>();
+        for (Path script : corpus()) {
+            for (List<String> options : OPTIONS) {
+                arguments.add(Arguments.of(script.getFileName().toString(), script, options));
+            }
+        }
+        return arguments.stream();
+    }
+
+    private static List<Path> corpus() throws IOException, URISyntaxException {
+        Path corpus = Paths.get(DifferentialTest.class.getResource("/corpus").toURI());
+        try (Stream<Path> files = Files.list(corpus)) {
+            return files
+                    .filter(file -> file.getFileName().toString().endsWith(".lox"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @ParameterizedTest(name = "{0} {2}")
+    @MethodSource("scriptsAndOptions")
+    void matchesTreeWalker(String name, Path script, List<String> options) throws Exception {
+        assertEquals(expected(script), run(script, options));
+    }
+
+    // The first run stores the compiled script and the second loads it.
+    @ParameterizedTest(name = "{0} [--cache]")
+    @MethodSource("scripts")
+    void matchesTreeWalkerThroughCache(String name, Path script) throws Exception {
+        List<String> options = Collections.singletonList("--cache=" + cacheDirectory);
+        assertEquals(expected(script), run(script, options), "storing");
+        assertEquals(expected(script), run(script, options), "loading");
+    }
+
+    private static synchronized LoxProcess.Result expected(Path script) throws IOException, InterruptedException {
+        LoxProcess.Result result = expected.get(script);
+        if (result == null) {
+            result = run(script, Collections.<String>emptyList());
+            expected.put(script, result);
+        }
+        return result;
+    }
+
+    private static LoxProcess.Result run(Path script, List<String> options) throws IOException, InterruptedException {
+        List<String> arguments = new ArrayList<>(options);
+        arguments.add(script.toString());
+        return LoxProcess.run(script.getParent(), arguments);
+    }
+}
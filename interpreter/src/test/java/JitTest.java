@@ -0,0 +1,84 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.jupiter.api.Test;
+
+// Checks that FunctionCompiler takes the functions it should, rather than
+// only that their results are right; DifferentialTest covers those.
+class JitTest {
+    private static final String SOURCE =
+            "fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }\n" +
+            "fun show(n) { print n; return n; }\n" +
+            "for (var i = 0; i < 2000; i = i + 1) show;\n" +
+            "var last = 0;\n" +
+            "for (var i = 0; i < 2000; i = i + 1) last = fib(5);\n" +
+            "show(last);\n" +
+            "print fib(20);\n";
+
+    @Test
+    void compilesHotNumericFunction() {
+        Program program = run(true, false);
+        Stmt.Function fib = function(program, "fib");
+        assertTrue(fib.compileAttempted);
+        assertNotNull(fib.compiled);
+        assertFalse(fib.loopingCompileAttempted);
+    }
+
+    // Only --tco lets self tail calls loop, so it gets code of its own.
+    @Test
+    void compilesLoopingVersionWithTailCalls() {
+        Program program = run(true, true);
+        Stmt.Function fib = function(program, "fib");
+        assertTrue(fib.loopingCompileAttempted);
+        assertNotNull(fib.compiledLooping);
+        assertFalse(fib.compileAttempted);
+    }
+
+    @Test
+    void leavesColdFunctionsAlone() {
+        Program program = run(true, false);
+        assertFalse(function(program, "show").compileAttempted);
+    }
+
+    @Test
+    void compilesNothingWhenDisabled() {
+        Program program = run(false, false);
+        Stmt.Function fib = function(program, "fib");
+        assertFalse(fib.compileAttempted);
+        assertNull(fib.compiled);
+    }
+
+    private static Program run(boolean compile, boolean tailCalls) {
+        LoxEngine engine = new LoxEngine();
+        if (compile) engine.enableCompilation();
+        if (tailCalls) engine.enableTailCalls();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        ErrorReporter errors = new ErrorReporter(new PrintStream(err, true));
+
+        Program program = engine.compile(SOURCE, errors);
+        assertNotNull(program, err.toString());
+        engine.newContext(new PrintStream(out, true), errors).execute(program);
+
+        assertEquals("", err.toString());
+        String newline = System.lineSeparator();
+        assertEquals("5" + newline + "6765" + newline, out.toString());
+        return program;
+    }
+
+    private static Stmt.Function function(Program program, String name) {
+        for (Stmt statement : program.statements) {
+            if (statement instanceof Stmt.Function &&
+                    ((Stmt.Function) statement).name.lexeme.equals(name)) {
+                return (Stmt.Function) statement;
+            }
+        }
+        throw new AssertionError("no function " + name);
+    }
+}
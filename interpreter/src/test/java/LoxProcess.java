@@ -0,0 +1,83 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs the interpreter's command line in its own JVM, since it exits with
+// the status of the script.
+final class LoxProcess {
+    private LoxProcess() {}
+
+    // Runs "java Main" with the arguments from the directory. The engines
+    // take different numbers of Java frames per Lox call, so the stack is
+    // made big enough that the tests' recursion overflows none of them.
+    static Result run(Path directory, List<String> arguments) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-Xss8m");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("Main");
+        command.addAll(arguments);
+
+        Process process = new ProcessBuilder(command).directory(directory.toFile()).start();
+        process.getOutputStream().close();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Thread errReader = new Thread(() -> copy(process.getErrorStream(), err));
+        errReader.start();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        copy(process.getInputStream(), out);
+        errReader.join();
+        int exitCode = process.waitFor();
+
+        return new Result(new String(out.toByteArray(), StandardCharsets.UTF_8),
+                new String(err.toByteArray(), StandardCharsets.UTF_8), exitCode);
+    }
+
+    private static void copy(InputStream in, OutputStream out) {
+        byte[] buffer = new byte[8192];
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static final class Result {
+        final String out;
+        final String err;
+        final int exitCode;
+
+        Result(String out, String err, int exitCode) {
+            this.out = out;
+            this.err = err;
+            this.exitCode = exitCode;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Result)) return false;
+            Result result = (Result) other;
+            return out.equals(result.out) && err.equals(result.err) && exitCode == result.exitCode;
+        }
+
+        @Override
+        public int hashCode() {
+            return (out.hashCode() * 31 + err.hashCode()) * 31 + exitCode;
+        }
+
+        // Shown by a failed assertion, so the diff covers all three.
+        @Override
+        public String toString() {
+            return "exit code " + exitCode + "\n--- stdout\n" + out + "--- stderr\n" + err;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+// Runs programs of several scripts, given as files and as a directory, and
+// checks that their output comes in file order and that every error names
+// the file it is in.
+class MultiFileTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void runsFilesInOrder() throws Exception {
+        write("lib/a.lox", "var greeting = \"hello\";");
+        write("lib/util/b.lox", "fun greet(name) { return greeting + \" \" + name; }");
+        write("main.lox", "print greet(\"world\");", "print \"done\";");
+
+        assertEquals(result(lines("hello world", "done"), "", 0), run("lib", "main.lox"));
+    }
+
+    @Test
+    void reportsSyntaxErrorsOfEveryFile() throws Exception {
+        write("lib/a.lox", "print 1;", "var x = ;");
+        write("lib/b.lox", "print 2;", "print (;");
+        write("lib/util/c.lox", "print 3;");
+        write("main.lox", "print @;");
+
+        String err = lines(
+                "[" + path("lib/a.lox") + " line 2] Error at ';': Expect expression.",
+                "[" + path("lib/b.lox") + " line 2] Error at ';': Expect expression.",
+                "[main.lox line 1] Error: Unexpected character: @",
+                "[main.lox line 1] Error at ';': Expect expression.");
+        assertEquals(result("", err, 65), run("lib", "main.lox"));
+    }
+
+    @Test
+    void reportsResolutionErrorsOfEveryFile() throws Exception {
+        write("lib/a.lox", "fun f() {", "  var a = 1;", "  var a = 2;", "}");
+        write("main.lox", "print this;");
+
+        String err = lines(
+                "[" + path("lib/a.lox") + " line 3] Error at 'a': Already a variable with this name in this scope.",
+                "[main.lox line 1] Error at 'this': Can't use 'this' outside of a class.");
+        assertEquals(result("", err, 65), run("lib", "main.lox"));
+    }
+
+    // The error is in a function from one file called from another, so
+    // the line alone would point at the wrong file.
+    @ParameterizedTest
+    @ValueSource(strings = {"--engine=ast", "--engine=vm", "--jit", "--optimize", "--tco"})
+    void runtimeErrorNamesItsFile(String option) throws Exception {
+        write("lib/a.lox", "fun add(a, b) {", "  return a + b;", "}");
+        write("main.lox", "print add(1, 2);", "print add(1, nil);");
+
+        String err = lines("Operands must be two numbers or two strings.", "[" + path("lib/a.lox") + " line 2]");
+        assertEquals(result(lines("3"), err, 70), run(option, "lib", "main.lox"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"--engine=ast", "--engine=vm"})
+    void runtimeErrorInTopLevelCodeNamesItsFile(String option) throws Exception {
+        write("a.lox", "var x = 1;");
+        write("b.lox", "print x;", "", "print -\"x\";");
+
+        String err = lines("Operand must be a number.", "[b.lox line 3]");
+        assertEquals(result(lines("1"), err, 70), run(option, "a.lox", "b.lox"));
+    }
+
+    // Cached files are saved without a name, so a loaded file gets the one
+    // it is run under.
+    @Test
+    void cachedFilesKeepTheirNames() throws Exception {
+        write("lib/a.lox", "fun f() {", "  return -nil;", "}");
+        write("main.lox", "f();");
+        String cache = "--cache=" + directory.resolve("cache");
+
+        String err = lines("Operand must be a number.", "[" + path("lib/a.lox") + " line 2]");
+        assertEquals(result("", err, 70), run(cache, "lib", "main.lox"), "storing");
+        assertEquals(result("", err, 70), run(cache, "lib", "main.lox"), "loading");
+
+        Files.move(directory.resolve("lib"), directory.resolve("renamed"));
+        err = lines("Operand must be a number.", "[" + path("renamed/a.lox") + " line 2]");
+        assertEquals(result("", err, 70), run(cache, "renamed", "main.lox"), "renamed");
+    }
+
+    // A lone script keeps the usual "[line N]".
+    @Test
+    void singleScriptErrorsHaveNoName() throws Exception {
+        write("main.lox", "print 1;", "print -nil;");
+
+        String err = lines("Operand must be a number.", "[line 2]");
+        assertEquals(result(lines("1"), err, 70), run("main.lox"));
+    }
+
+    private void write(String name, String... lines) throws IOException {
+        Path file = directory.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, Arrays.asList(lines), StandardCharsets.UTF_8);
+    }
+
+    private LoxProcess.Result run(String... arguments) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add("run");
+        command.addAll(Arrays.asList(arguments));
+        return LoxProcess.run(directory, command);
+    }
+
+    // The name a file found under a directory is reported by.
+    private static String path(String name) {
+        return Paths.get(name).toString();
+    }
+
+    private static String lines(String... lines) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append(System.lineSeparator());
+        }
+        return text.toString();
+    }
+
+    private static LoxProcess.Result result(String out, String err, int exitCode) {
+        return new LoxProcess.Result(out, err, exitCode);
+    }
+}
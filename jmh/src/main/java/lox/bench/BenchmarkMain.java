@@ -0,0 +1,28 @@
+package lox.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs JMH, writing machine-readable results to {@code jmh-result.json}
+ * unless the command line chooses another result format or file, so runs
+ * from different commits can be compared.
+ */
+public final class BenchmarkMain {
+    private BenchmarkMain() {}
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        if (!options.contains("-rf")) {
+            options.add("-rf");
+            options.add("json");
+        }
+        if (!options.contains("-rff")) {
+            options.add("-rff");
+            options.add("jmh-result.json");
+        }
+
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+}
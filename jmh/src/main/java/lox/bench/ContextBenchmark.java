@@ -0,0 +1,51 @@
+package lox.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs one compiled program from every core at once, each invocation in a
+ * fresh context, the way a server embedding the engine would. Compare the
+ * throughput with a {@code -t 1} run to see how it scales.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(Threads.MAX)
+@Fork(1)
+public class ContextBenchmark {
+    @Param({"fib", "method_call", "zoo"})
+    public String program;
+
+    @Param({"ast", "vm"})
+    public String engine;
+
+    private Object loxEngine;
+    private Object compiled;
+
+    @Setup
+    public void setUp() throws IOException {
+        loxEngine = Lox.newEngine(engine);
+        compiled = Lox.compile(loxEngine, Programs.load(program));
+    }
+
+    @Benchmark
+    public void execute() {
+        Lox.execute(loxEngine, compiled);
+    }
+}
@@ -0,0 +1,123 @@
+package lox.bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures each front-end phase on its own over a large generated program.
+ * Every phase starts from the previous phase's output, prepared in setup.
+ * {@code loadCached} is the alternative to all three: reading the resolved
+ * program back from a warm program cache. {@code compile} and
+ * {@code compileModules} run the whole front end over the program as one
+ * script and split into 100 modules parsed in parallel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrontEndBenchmark {
+    /** Number of generated units; each is about 25 lines of code. */
+    @Param({"1000", "10000"})
+    public int units;
+
+    private String source;
+    private Object tokens;
+    private List<?> statements;
+    private Path cacheDirectory;
+    private Object cachingEngine;
+    private Object engine;
+    private List<String> moduleNames;
+    private List<String> modules;
+
+    @Setup
+    public void setUp() throws IOException {
+        source = SourceGenerator.generate(units);
+        tokens = Lox.scan(source);
+        statements = Lox.parse(tokens);
+        Lox.resolve(statements);
+        if (Lox.hadError()) throw new IllegalStateException("Generated source does not compile.");
+
+        engine = Lox.newEngine("ast");
+        moduleNames = new ArrayList<>();
+        modules = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            moduleNames.add("module" + i + ".lox");
+            modules.add(SourceGenerator.generate(units / 100));
+        }
+
+        cacheDirectory = Files.createTempDirectory("lox-cache");
+        cachingEngine = Lox.newEngine("ast");
+        Lox.cacheIn(cachingEngine, cacheDirectory);
+        Lox.compile(cachingEngine, source);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(cacheDirectory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+
+    @Benchmark
+    public Object scan() {
+        return Lox.scan(source);
+    }
+
+    @Benchmark
+    public List<?> parse() {
+        return Lox.parse(tokens);
+    }
+
+    @Benchmark
+    public void resolve() {
+        Lox.resolve(statements);
+    }
+
+    @Benchmark
+    public List<?> optimize() {
+        return Lox.optimize(statements);
+    }
+
+    @Benchmark
+    public Object compile() {
+        return Lox.compile(engine, source);
+    }
+
+    @Benchmark
+    public Object compileModules() {
+        return Lox.compile(engine, moduleNames, modules);
+    }
+
+    @Benchmark
+    public Object loadCached() {
+        return Lox.compile(cachingEngine, source);
+    }
+}
@@ -0,0 +1,221 @@
+package lox.bench;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Entry points into the interpreter for the benchmarks.
+ *
+ * <p>The interpreter is declared in the unnamed package, which code in a named
+ * package cannot refer to, and JMH refuses benchmarks in the unnamed package.
+ * The pipeline is therefore reached through method handles. They are
+ * constants, so the JIT turns them into direct calls.
+ */
+final class Lox {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final MethodHandle NEW_ERRORS = constructor("ErrorReporter", PrintStream.class);
+    private static final MethodHandle HAD_ERROR = getter("ErrorReporter", "hadError");
+    private static final MethodHandle HAD_RUNTIME_ERROR = getter("ErrorReporter", "hadRuntimeError");
+    private static final MethodHandle NEW_SCANNER = constructor("Scanner", CharSequence.class, type("ErrorReporter"));
+    private static final MethodHandle SCAN_TOKENS = method("Scanner", "scanTokens");
+    private static final MethodHandle NEW_PARSER =
+        constructor("Parser", type("TokenBuffer"), boolean.class, type("ErrorReporter"));
+    private static final MethodHandle PARSE = method("Parser", "parse");
+    private static final MethodHandle NEW_RESOLVER = constructor("Resolver", type("ErrorReporter"));
+    private static final MethodHandle RESOLVE = method("Resolver", "resolve", List.class);
+    private static final MethodHandle NEW_OPTIMIZER = constructor("Optimizer");
+    private static final MethodHandle OPTIMIZE = method("Optimizer", "optimize", List.class);
+    private static final MethodHandle NEW_ENGINE = constructor("LoxEngine");
+    private static final MethodHandle USE_VM = method("LoxEngine", "useVm", boolean.class);
+    private static final MethodHandle ENABLE_SPECIALIZATION = method("LoxEngine", "enableSpecialization");
+    private static final MethodHandle ENABLE_COMPILATION = method("LoxEngine", "enableCompilation");
+    private static final MethodHandle ENABLE_OPTIMIZATION = method("LoxEngine", "enableOptimization");
+    private static final MethodHandle ENABLE_TAIL_CALLS = method("LoxEngine", "enableTailCalls");
+    private static final MethodHandle CACHE_IN = method("LoxEngine", "cacheIn", Path.class);
+    private static final MethodHandle COMPILE =
+        method("LoxEngine", "compile", CharSequence.class, type("ErrorReporter"));
+    private static final MethodHandle COMPILE_ALL =
+        method("LoxEngine", "compile", List.class, List.class, type("ErrorReporter"));
+    private static final MethodHandle NEW_CONTEXT =
+        method("LoxEngine", "newContext", PrintStream.class, type("ErrorReporter"));
+    private static final MethodHandle EXECUTE = method("LoxContext", "execute", type("Program"));
+
+    /** Collects the errors of the front-end phases run on their own. */
+    private static final Object ERRORS = newErrors();
+
+    private Lox() {}
+
+    /** Returns the scanner's token buffer, opaque outside the default package. */
+    static Object scan(String source) {
+        try {
+            return SCAN_TOKENS.invoke(NEW_SCANNER.invoke(source, ERRORS));
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static List<?> parse(Object tokens) {
+        try {
+            return (List<?>) PARSE.invoke(NEW_PARSER.invoke(tokens, false, ERRORS));
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void resolve(List<?> statements) {
+        try {
+            RESOLVE.invoke(NEW_RESOLVER.invoke(ERRORS), statements);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /** Runs the optimizing pass over resolved statements, which it leaves as they are. */
+    static List<?> optimize(List<?> statements) {
+        try {
+            return (List<?>) OPTIMIZE.invoke(NEW_OPTIMIZER.invoke(), statements);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /** Whether {@link #scan}, {@link #parse} or {@link #resolve} reported an error. */
+    static boolean hadError() {
+        return hadError(ERRORS);
+    }
+
+    /**
+     * Creates an engine: "ast" for the tree-walker, "ast-specialized" for
+     * the tree-walker with node rewriting, "ast-jit" for the tree-walker
+     * compiling hot functions to JVM bytecode, "ast-optimized" for the
+     * tree-walker running optimized programs, "ast-tco" for the tree-walker
+     * running tail calls in place, or "vm".
+     */
+    static Object newEngine(String engine) {
+        try {
+            Object loxEngine = NEW_ENGINE.invoke();
+            if (engine.equals("vm")) USE_VM.invoke(loxEngine, true);
+            if (engine.equals("ast-specialized")) ENABLE_SPECIALIZATION.invoke(loxEngine);
+            if (engine.equals("ast-jit")) ENABLE_COMPILATION.invoke(loxEngine);
+            if (engine.equals("ast-optimized")) ENABLE_OPTIMIZATION.invoke(loxEngine);
+            if (engine.equals("ast-tco")) ENABLE_TAIL_CALLS.invoke(loxEngine);
+            return loxEngine;
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /** Makes the engine keep compiled programs in the directory. */
+    static void cacheIn(Object engine, Path directory) {
+        try {
+            CACHE_IN.invoke(engine, directory);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /** Scans, parses and resolves a program into one any context of the engine can run. */
+    static Object compile(Object engine, String source) {
+        try {
+            Object program = COMPILE.invoke(engine, source, newErrors());
+            if (program == null) throw new IllegalStateException("Benchmark program does not compile.");
+            return program;
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /** Compiles several named scripts into one program, parsing them in parallel. */
+    static Object compile(Object engine, List<String> names, List<String> sources) {
+        try {
+            Object program = COMPILE_ALL.invoke(engine, names, sources, newErrors());
+            if (program == null) throw new IllegalStateException("Benchmark program does not compile.");
+            return program;
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /** Runs a compiled program in a fresh context whose output is discarded. */
+    static void execute(Object engine, Object program) {
+        try {
+            Object errors = newErrors();
+            EXECUTE.invoke(NEW_CONTEXT.invoke(engine, Programs.NULL_OUT, errors), program);
+            if (hadError(errors)) throw new IllegalStateException("Benchmark program failed.");
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /** Compiles and runs a program in a fresh context, the way `java Main run` does. */
+    static void run(Object engine, String source) {
+        execute(engine, compile(engine, source));
+    }
+
+    private static Object newErrors() {
+        try {
+            return NEW_ERRORS.invoke(System.err);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static boolean hadError(Object errors) {
+        try {
+            return (boolean) HAD_ERROR.invoke(errors) || (boolean) HAD_RUNTIME_ERROR.invoke(errors);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Interpreter class " + name + " is not on the classpath.", e);
+        }
+    }
+
+    private static MethodHandle constructor(String className, Class<?>... parameterTypes) {
+        try {
+            Constructor<?> constructor = type(className).getDeclaredConstructor(parameterTypes);
+            constructor.setAccessible(true);
+            return LOOKUP.unreflectConstructor(constructor);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle method(String className, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = type(className).getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return LOOKUP.unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle getter(String className, String name) {
+        try {
+            Field field = type(className).getDeclaredField(name);
+            field.setAccessible(true);
+            return LOOKUP.unreflectGetter(field);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException) return (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
+        return new IllegalStateException(e);
+    }
+}
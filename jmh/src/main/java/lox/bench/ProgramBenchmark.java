@@ -0,0 +1,60 @@
+package lox.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs the standard Lox benchmark programs end to end: scan, parse, resolve
+ * and execute, on a fresh interpreter each time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProgramBenchmark {
+    @Param({
+        "binary_trees",
+        "equality",
+        "fib",
+        "instantiation",
+        "method_call",
+        "properties",
+        "recursion",
+        "string_concat",
+        "string_equality",
+        "trees",
+        "zoo"
+    })
+    public String program;
+
+    @Param({"ast", "ast-specialized", "ast-jit", "ast-optimized", "ast-tco", "vm"})
+    public String engine;
+
+    private String source;
+    private Object loxEngine;
+
+    @Setup
+    public void setUp() throws IOException {
+        source = Programs.load(program);
+        loxEngine = Lox.newEngine(engine);
+    }
+
+    @Benchmark
+    public void run() {
+        Lox.run(loxEngine, source);
+    }
+}
@@ -0,0 +1,37 @@
+package lox.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+/** Loads the benchmark programs bundled under {@code lox/bench}. */
+final class Programs {
+    /** Swallows what the programs print so console I/O stays out of the measurements. */
+    static final PrintStream NULL_OUT = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    });
+
+    private Programs() {}
+
+    static String load(String name) throws IOException {
+        String resource = "/lox/bench/" + name + ".lox";
+        try (InputStream in = Programs.class.getResourceAsStream(resource)) {
+            if (in == null) throw new IOException("Missing benchmark program " + resource + ".");
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
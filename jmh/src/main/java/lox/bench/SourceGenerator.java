@@ -0,0 +1,48 @@
+package lox.bench;
+
+/**
+ * Generates large, valid Lox programs for the front-end benchmarks. Each
+ * unit declares a function, a subclass and a few globals, exercising every
+ * kind of token and most statement forms.
+ */
+final class SourceGenerator {
+    private SourceGenerator() {}
+
+    static String generate(int units) {
+        StringBuilder source = new StringBuilder(units * 800);
+        source.append("class Base {\n")
+              .append("  init(x) { this.x = x; }\n")
+              .append("  get() { return this.x; }\n")
+              .append("}\n\n");
+
+        for (int i = 0; i < units; i++) {
+            source.append("// Unit ").append(i).append(".\n")
+                  .append("fun compute").append(i).append("(limit, step) {\n")
+                  .append("  var total = 0;\n")
+                  .append("  for (var i = 0; i < limit; i = i + step) {\n")
+                  .append("    if (i >= 3 and i != 7 or !false) {\n")
+                  .append("      total = total + i * 2 - 1 / 3;\n")
+                  .append("    } else {\n")
+                  .append("      total = total - 1.5;\n")
+                  .append("    }\n")
+                  .append("  }\n")
+                  .append("  while (total > 100) total = total / 2;\n")
+                  .append("  return total;\n")
+                  .append("}\n\n")
+                  .append("class Point").append(i).append(" < Base {\n")
+                  .append("  init(x, y) {\n")
+                  .append("    super.init(x);\n")
+                  .append("    this.y = y;\n")
+                  .append("  }\n")
+                  .append("  length() { return this.get() * this.get() + this.y * this.y; }\n")
+                  .append("}\n\n")
+                  .append("var value").append(i).append(" = compute").append(i)
+                  .append("(10, 1) + Point").append(i).append("(1, 2).length();\n")
+                  .append("var label").append(i).append(" = \"unit \" + \"")
+                  .append(i).append("\";\n")
+                  .append("print label").append(i).append(" == nil;\n\n");
+        }
+
+        return source.toString();
+    }
+}